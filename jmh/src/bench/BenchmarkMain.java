@@ -0,0 +1,105 @@
+package bench;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs MixedBenchmark over a range of thread counts, and
+ * ProducerConsumerBenchmark over a range of producer/consumer splits,
+ * with the GC profiler on.  The profiler adds the allocation rate per
+ * operation and the collection counts to every result.
+ *
+ * For a single configuration use the JMH runner directly, e.g.
+ *   java -cp ... org.openjdk.jmh.Main MixedBenchmark -t 4 -p structure=bag-1024 -prof gc
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, NoSuchFieldException {
+        ArgumentParser parser = ArgumentParsers.newArgumentParser("ConcurrentBag Benchmarks");
+        parser.addArgument("-t").setDefault("1,2,4,8").help("Thread counts of the mixed benchmark");
+        parser.addArgument("-g").setDefault("1,1;1,3;3,1").help("Producer,consumer splits of the producer/consumer benchmark");
+        parser.addArgument("-p").help("Only these structures [bag,leaky,clq,ltq,cld]; bag and leaky run at every block size, bag-64 at one");
+        parser.addArgument("-r").help("Write the results as JSON to this file");
+
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            return;
+        }
+
+        String resultFile = ns.getString("r");
+        String structures = ns.getString("p");
+        String[] mixed = select(structures, MixedBenchmark.Shared.class.getField("structure"));
+        String[] pc = select(structures, ProducerConsumerBenchmark.class.getField("structure"));
+
+        for(String threads : ns.getString("t").split(",")) {
+            ChainedOptionsBuilder options = options(resultFile, "mixed-t" + threads)
+                    .include(MixedBenchmark.class.getSimpleName())
+                    .threads(Integer.parseInt(threads.trim()))
+                    .param("structure", mixed);
+            if(mixed.length > 0) {
+                new Runner(options.build()).run();
+            }
+        }
+
+        for(String split : ns.getString("g").split(";")) {
+            String[] counts = split.split(",");
+            ChainedOptionsBuilder options = options(resultFile, "pc-" + counts[0].trim() + "x" + counts[1].trim())
+                    .include(ProducerConsumerBenchmark.class.getSimpleName())
+                    .threadGroups(Integer.parseInt(counts[0].trim()), Integer.parseInt(counts[1].trim()))
+                    .param("structure", pc);
+            if(pc.length > 0) {
+                new Runner(options.build()).run();
+            }
+        }
+    }
+
+    /**
+     * The values of a benchmark's structure parameter that -p asks for.  A
+     * name without a block size picks every block size the benchmark has;
+     * names the benchmark lacks, like leaky for producer/consumer, drop out.
+     */
+    private static String[] select(String structures, Field field) {
+        String[] declared = field.getAnnotation(Param.class).value();
+        if(structures == null) {
+            return declared;
+        }
+
+        List<String> selected = new ArrayList<>();
+        for(String value : declared) {
+            for(String structure : structures.split(",")) {
+                structure = structure.trim();
+                if(value.equals(structure) || value.startsWith(structure + "-")) {
+                    selected.add(value);
+                    break;
+                }
+            }
+        }
+        return selected.toArray(new String[0]);
+    }
+
+    private static ChainedOptionsBuilder options(String resultFile, String run) {
+        ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(GCProfiler.class);
+        if(resultFile != null) {
+            //  One file per run, as each Runner writes its own
+            options.result(resultFile.replaceFirst("(\\.json)?$", "-" + run + ".json"))
+                    .resultFormat(ResultFormatType.JSON);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every thread both adds and removes, the workload of PerformanceTest.
+ *
+ * The operations follow a fixed pattern per hundred instead of a random
+ * draw, adds first, so a thread never removes more than it added plus
+ * what it was given up front.  That keeps LeakyConcurrentBag, whose
+ * steal spins while the bag is empty, away from an empty bag; it is
+ * also why the add ratio starts at one half.  Run with -t for the
+ * number of threads, or through BenchmarkMain for the whole sweep.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MixedBenchmark {
+    static final Integer ITEM = 42;
+    static final int PREFILL = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        //  The bags at two block sizes; the queues have none
+        @Param({"bag-64", "bag-1024", "leaky-64", "leaky-1024", "clq", "ltq", "cld"})
+        public String structure;
+
+        //  Adds per hundred operations
+        @Param({"50", "75", "90"})
+        public int addPercent;
+
+        Target target;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            target = Target.create(structure);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        int op;
+
+        @Setup(Level.Trial)
+        public void setup(Shared shared) throws Exception {
+            shared.target.register();
+            for(int i = 0; i < PREFILL; i++) {
+                shared.target.add(ITEM);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object operation(Shared shared, PerThread thread) throws Exception {
+        int op = thread.op;
+        thread.op = op == 99 ? 0 : op + 1;
+
+        if(op < shared.addPercent) {
+            shared.target.add(ITEM);
+            return ITEM;
+        }
+        return shared.target.remove();
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Separate producer and consumer threads, so every remove is a steal
+ * from the bag's point of view.  The split defaults to one of each; set
+ * it with -tg, e.g. -tg 1,3 for one producer and three consumers.
+ *
+ * A consumer finding the structure empty counts as an operation, so
+ * compare the add and take rates rather than the total.  When producers
+ * outrun consumers the structure grows through the iteration, which is
+ * why it is rebuilt for each one.  LeakyConcurrentBag is left out: its
+ * consumers would spin on an empty bag.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Group)
+public class ProducerConsumerBenchmark {
+    static final Integer ITEM = 42;
+
+    @Param({"bag-64", "bag-1024", "clq", "ltq", "cld"})
+    public String structure;
+
+    Target target;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        target = Target.create(structure);
+    }
+
+    @State(Scope.Thread)
+    public static class Registration {
+        @Setup(Level.Iteration)
+        public void setup(ProducerConsumerBenchmark benchmark) {
+            benchmark.target.register();
+        }
+    }
+
+    @Benchmark
+    @Group("pc")
+    @GroupThreads(1)
+    public void add(Registration registration) throws Exception {
+        target.add(ITEM);
+    }
+
+    @Benchmark
+    @Group("pc")
+    @GroupThreads(1)
+    public void take(Registration registration, Blackhole blackhole) throws Exception {
+        blackhole.consume(target.remove());
+    }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import bag.ConcurrentBag;
+import bag.ConcurrentBagBuilder;
+import bag.LeakyConcurrentBag;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedTransferQueue;
+
+/**
+ * The structures under test behind one add/remove interface.  A trial
+ * only ever uses one of them, so the calls stay monomorphic.
+ */
+abstract class Target {
+    static final String STRUCTURES = "bag-<block size>, leaky-<block size>, clq, ltq, cld";
+
+    abstract void add(Integer item) throws Exception;
+
+    /**
+     * @return an item, or null when the structure was found empty
+     */
+    abstract Integer remove() throws Exception;
+
+    /**
+     * Called once on every benchmark thread before it starts
+     */
+    void register() {
+    }
+
+    /**
+     * @param structure one of STRUCTURES; only the bags take a block size,
+     *                  so it is part of their name rather than a separate
+     *                  parameter that would multiply the queue runs
+     */
+    static Target create(String structure) {
+        String[] parts = structure.split("-", 2);
+        int blockSize = parts.length == 2 ? Integer.parseInt(parts[1]) : 0;
+        if(blockSize > 0 != (parts[0].equals("bag") || parts[0].equals("leaky"))) {
+            throw new IllegalArgumentException("Unknown structure " + structure + ", expected one of " + STRUCTURES);
+        }
+
+        switch(parts[0]) {
+            case "bag":
+                final ConcurrentBag<Integer> bag = new ConcurrentBagBuilder().blockSize(blockSize).build();
+                return new Target() {
+                    void add(Integer item) { bag.add(item); }
+                    Integer remove() { return bag.remove(); }
+                    void register() { bag.registerThread(); }
+                };
+            case "leaky":
+                final LeakyConcurrentBag<Integer> leaky = new LeakyConcurrentBag<>(blockSize);
+                return new Target() {
+                    void add(Integer item) throws Exception { leaky.add(item); }
+                    Integer remove() throws Exception {
+                        try {
+                            return leaky.remove();
+                        } catch (LeakyConcurrentBag.CannotStealException e) {
+                            return null;
+                        }
+                    }
+                    void register() { leaky.registerThread(); }
+                };
+            case "clq":
+                final ConcurrentLinkedQueue<Integer> clq = new ConcurrentLinkedQueue<>();
+                return new Target() {
+                    void add(Integer item) { clq.offer(item); }
+                    Integer remove() { return clq.poll(); }
+                };
+            case "ltq":
+                final LinkedTransferQueue<Integer> ltq = new LinkedTransferQueue<>();
+                return new Target() {
+                    void add(Integer item) { ltq.offer(item); }
+                    Integer remove() { return ltq.poll(); }
+                };
+            case "cld":
+                final ConcurrentLinkedDeque<Integer> cld = new ConcurrentLinkedDeque<>();
+                return new Target() {
+                    void add(Integer item) { cld.offerFirst(item); }
+                    Integer remove() { return cld.pollFirst(); }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown structure " + structure + ", expected one of " + STRUCTURES);
+        }
+    }
+}
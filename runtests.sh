@@ -0,0 +1,24 @@
+#!/bin/sh
+#  runtests.sh nthreads operations addratio datastructure [more PerformanceTest options]
+#  Runs 2 threads, then every even number of threads up to nthreads
+
+if [ $# -lt 4 ]; then
+    echo "runtests.sh nthreads operations addratio datastructure [options]"
+    exit 1
+fi
+echo "Beginning Performance Tests"
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+CLASSPATH="$DIR/out/production/concurrent-bag:$DIR/out:$DIR/lib/argparse4j-0.7.0.jar:$DIR/lib/javaee-api-5.0-2.jar:$DIR/lib/junit-4.0.jar:$DIR/lib/log4j-1.2.17.jar"
+
+NTHREADS=$1 OPERATIONS=$2 ADDRATIO=$3 STRUCTURE=$4
+shift 4
+
+THREADS=2
+n=4
+while [ $n -le "$NTHREADS" ]; do
+    THREADS="$THREADS,$n"
+    n=$((n + 2))
+done
+
+exec java -cp "$CLASSPATH" test.PerformanceTest -n "$THREADS" -o "$OPERATIONS" -a "$ADDRATIO" -d "$STRUCTURE" "$@"
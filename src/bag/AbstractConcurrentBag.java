@@ -0,0 +1,1708 @@
+package bag;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicStampedReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * The per-thread lists of the lock-free bag, shared by the bags of
+ * objects and of primitives.  Registration, the block lists and their
+ * deletion protocol, removing, stealing, moving items between lists,
+ * waiting and empty detection live here, on slots.  The subclasses own
+ * what is in the slots: how items are written, taken and handed out.
+ *
+ * @param <B> the block type of the lists
+ * @param <M> the per-thread metadata
+ */
+abstract class AbstractConcurrentBag<B extends AbstractConcurrentBag.ListBlock<B>,
+                                     M extends AbstractConcurrentBag.ListCursor<B>> {
+    final static Logger logger = Logger.getLogger(AbstractConcurrentBag.class);
+
+    /**
+     * A block of items in a thread's list.  Each list is linked from the
+     * newest block (the head, owned by the thread) to the oldest.
+     *
+     * The stamp on next carries the deletion marks of the paper:
+     * MARK1 means this block is deleted and next is frozen, MARK2 means
+     * the block next points to is being deleted.  The bits above them
+     * count how often the block was recycled, see deleteBlock.
+     */
+    interface ListBlock<B extends ListBlock<B>> {
+        AtomicStampedReference<B> next();
+
+        int length();
+
+        /**
+         * @return the number of slots holding an item
+         */
+        int itemCount();
+
+        /**
+         * @return true when slot i holds an item
+         */
+        boolean holdsItem(int i);
+
+        /**
+         * Take the item in slot i, unless it is empty or another thread
+         * takes it first, and publish it in slot j of to with a release
+         * store.  Slot j is an empty slot of the caller's own list.
+         *
+         * @return true when the item was moved
+         */
+        boolean moveTo(int i, B to, int j);
+    }
+
+    /*
+     * Padding against false sharing.  A cursor is written by its thread on
+     * every operation, a list head by its owner and read by every stealer
+     * passing by.  Each sits between two 128 byte runs of padding, so no
+     * other object shares its cache lines, or the line the adjacent line
+     * prefetcher pairs with them.  Fields of a superclass are laid out
+     * before those of its subclasses, so the padding is split across the
+     * class hierarchy.  The int takes the gap left after a compressed
+     * object header, where the layout would otherwise move a subclass
+     * field.
+     */
+    static class LeftPadding {
+        int p;
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+        long p08, p09, p10, p11, p12, p13, p14, p15;
+    }
+
+    static class SubBagFields<B> extends LeftPadding {
+        //  Only ever written by the owning thread, or under the
+        //  registration lock while the list has no owner
+        volatile B head;
+        volatile Thread owner;
+
+        //  Cursor of the owner, or of the last one, only read for a
+        //  guess at the number of items in the list
+        volatile ListCursor<B> cursor;
+
+        //  Steal domain of the owner, or of the last one
+        volatile int domain;
+        final AtomicInteger state;
+
+        //  Set by a stealer that walked the list to its end, cleared by
+        //  the owner's next add.  Only kept while the bag has steal
+        //  domains, see chooseStealDomain
+        volatile boolean drained;
+
+        //  Items other threads stole or moved out of the list, see
+        //  approximateSize.  Its own object, off the line of head
+        final AtomicLong taken;
+
+        SubBagFields(Thread owner, int state) {
+            this.owner = owner;
+            this.state = new AtomicInteger(state);
+            this.taken = new AtomicLong(0);
+        }
+    }
+
+    /**
+     * The list of a single registered thread.  When the thread leaves the
+     * bag, or dies, the list is orphaned: a registering thread takes it
+     * over, or a live thread moves its items into its own list and frees
+     * the slot for reuse.
+     */
+    static class SubBag<B> extends SubBagFields<B> {
+        static final int ACTIVE = 0;
+        static final int ORPHANED = 1;
+        static final int ADOPTING = 2;
+        static final int FREE = 3;
+
+        long q00, q01, q02, q03, q04, q05, q06, q07;
+        long q08, q09, q10, q11, q12, q13, q14, q15;
+
+        SubBag(Thread owner) {
+            super(owner, ACTIVE);
+        }
+    }
+
+    static class ListCursorFields<B> extends LeftPadding {
+        public B curBlock;
+
+        public int indexInBlock;
+        public int indexInBag;
+        public int nextBlockSize;
+        public int stealFromBagIndex;
+        public int stealFromSlot;
+        public int stealFromBlockIndex;
+        public B stealBlock;
+        public B stealPrev;
+        public int stealListsWalked;
+
+        //  Generation of stealPrev's link when we followed it, see deleteBlock
+        int stealPrevGeneration;
+        public boolean isStealInit = false;
+        public boolean stealChoseList;
+        public int stealDomain;
+        public int stealDomainLists;
+        public boolean stealOutsideDomain;
+
+        //  Items this thread added and removed, see size.  Only the
+        //  thread writes them
+        long added;
+        long removed;
+
+        //  Items it stole from other lists, also counted in removed, and
+        //  items it moved into its own list, see approximateSize
+        long stolen;
+        long movedIn;
+
+        //  BagMetrics counters, indexed by BagMetrics.LOCAL_HITS and on.
+        //  Only the thread writes them, and only when counting is on
+        final long[] counts = new long[BagMetrics.COUNTERS];
+
+        //  Reused when reading a block's next reference and marks together
+        final int[] stampHolder = new int[1];
+
+        //  Head blocks this thread emptied, kept for reuse, the last one
+        //  emptied on top.  Locked on, as releaseIdleSpares may drop
+        //  them; the thread only takes the lock once per block
+        final ArrayDeque<B> spareBlocks = new ArrayDeque<>();
+
+        //  Adds and removes as of the last releaseIdleSpares
+        long operationsSeen;
+
+        ListCursorFields(int indexInBag) {
+            this.indexInBag = indexInBag;
+        }
+    }
+
+    /**
+     * Position of a registered thread in its own list, and in the list it
+     * steals from
+     */
+    public abstract static class ListCursor<B> extends ListCursorFields<B> {
+        long q00, q01, q02, q03, q04, q05, q06, q07;
+        long q08, q09, q10, q11, q12, q13, q14, q15;
+
+        ListCursor(int indexInBag) {
+            super(indexInBag);
+        }
+
+        /**
+         * Take the item in slot i of block, unless it is empty or another
+         * thread takes it first, and hold it until the bag hands it out.
+         * The subclasses hold it in a field of its own type, past the
+         * padding, which only the thread itself touches.
+         *
+         * @return true when the item is held now
+         */
+        abstract boolean takeSlot(B block, int i);
+    }
+
+    //  Size of the first block of each list, and the most an adaptive
+    //  list grows its blocks to
+    final int blockSize;
+    final int maxBlockSize;
+
+    //  Whether a stealer moves half of what is left in the victim's
+    //  block into its own list, see ConcurrentBagBuilder.bulkSteal
+    final boolean bulkSteal;
+
+    //  Where each steal starts looking
+    final StealPolicy stealPolicy;
+
+    //  Most emptied head blocks each thread keeps for reuse, see
+    //  ConcurrentBagBuilder.recycleBlocks
+    final int recycleBlocks;
+
+    //  Whether threads count BagMetrics events.  Fixed for the life of
+    //  the bag, so when off the checks are branches that always go the
+    //  same way
+    final boolean metrics;
+
+    //  Steal domain of a registering thread, null when only
+    //  registerThread(int) puts threads in a domain other than 0
+    private final ToIntFunction<Thread> stealDomains;
+
+    //  Set once a thread registers in a domain other than 0, until then
+    //  stealers do not look at domains
+    private volatile boolean hasStealDomains;
+
+    //  Opaque access to ListCursorFields.added and removed: other threads
+    //  see whole values without the owner paying for a fence
+    private static final VarHandle ADDED;
+    private static final VarHandle REMOVED;
+    private static final VarHandle STOLEN;
+    private static final VarHandle MOVED_IN;
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ADDED = lookup.findVarHandle(ListCursorFields.class, "added", long.class);
+            REMOVED = lookup.findVarHandle(ListCursorFields.class, "removed", long.class);
+            STOLEN = lookup.findVarHandle(ListCursorFields.class, "stolen", long.class);
+            MOVED_IN = lookup.findVarHandle(ListCursorFields.class, "movedIn", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final int MARK1 = 1;
+    private static final int MARK2 = 2;
+    private static final int MARKS = MARK1 | MARK2;
+
+    //  The stamp bits above the marks, and what a recycled block adds to them
+    private static final int GENERATION = ~MARKS;
+    private static final int GENERATION_STEP = MARKS + 1;
+
+    //  Guards changes to activeSlots and freeSlots
+    private Lock registeredThreadLock;
+    final ThreadLocal<M> localMetadata = new ThreadLocal<>();
+
+    //  One list per registered thread, indexed by ListCursor.indexInBag
+    private BagDirectory<SubBag<B>> subBags;
+
+    //  Notify bits of the lists, 64 to a word, see notifyStart
+    private BagDirectory<AtomicLong> notifyWords;
+
+    //  Indexes of the lists that are owned or orphaned, the ones stealers
+    //  scan.  Copied on write, under the lock
+    private volatile int[] activeSlots;
+    private ArrayDeque<Integer> freeSlots;
+    private AtomicInteger orphans;
+
+    //  Items added less items removed that no cursor counts any more,
+    //  or never did, see size
+    private AtomicLong retired;
+
+    //  BagMetrics counts of cursors dropped from their list
+    private AtomicLongArray retiredCounts;
+
+    //  Blocks in the lists or kept as spares, and the most there ever
+    //  were.  Only kept when counting is on
+    private AtomicLong blocks;
+    private AtomicLong peakBlocks;
+
+    //  Threads moving items from another list into their own, see startMove
+    private AtomicInteger moving;
+
+    //  Consumers parked in take or poll.  Adds only read waiting while
+    //  it is zero
+    private AtomicInteger waiting;
+    private ConcurrentLinkedQueue<Thread> waiters;
+
+    AbstractConcurrentBag(ConcurrentBagBuilder options) {
+        blockSize = options.blockSize;
+        maxBlockSize = options.maxBlockSize == 0 ? blockSize : options.maxBlockSize;
+        bulkSteal = options.bulkSteal;
+        stealPolicy = options.stealPolicy;
+        recycleBlocks = options.recycleBlocks;
+        stealDomains = options.stealDomains;
+        metrics = options.metrics;
+
+        registeredThreadLock = new ReentrantLock();
+        subBags = new BagDirectory<>();
+        notifyWords = new BagDirectory<>();
+        activeSlots = new int[0];
+        freeSlots = new ArrayDeque<>();
+        orphans = new AtomicInteger(0);
+        retired = new AtomicLong(0);
+        retiredCounts = new AtomicLongArray(BagMetrics.COUNTERS);
+        blocks = new AtomicLong(0);
+        peakBlocks = new AtomicLong(0);
+        moving = new AtomicInteger(0);
+        waiting = new AtomicInteger(0);
+        waiters = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return a new, empty block linked to next
+     */
+    abstract B newBlock(int size, B next);
+
+    abstract M newMetaData(int indexInBag);
+
+    /**
+     * Current block is full, or we moved down into an older block while
+     * removing.  Push a new block as the head of our list
+     */
+    final void pushBlock(M md) {
+        //  Adaptive block size: a thread filling its blocks gets bigger ones
+        if(md.curBlock != null && md.nextBlockSize < maxBlockSize) {
+            md.nextBlockSize = Math.min(maxBlockSize, md.nextBlockSize * 2);
+        }
+
+        B newBlock = reuseBlock(md);
+        if(newBlock == null) {
+            newBlock = newBlock(md.nextBlockSize, md.curBlock);
+            count(md, BagMetrics.BLOCKS_ALLOCATED);
+            blocksHeld(1);
+        }
+        subBags.get(md.indexInBag).head = newBlock;
+
+        md.curBlock = newBlock;
+        md.indexInBlock = 0;
+    }
+
+    /**
+     * Take the spare block emptied last, if it has the size the next
+     * block should have, and link it to our current block under a new
+     * generation.  Spares of another size are dropped, with adaptive
+     * block sizes they are unlikely to fit later.
+     *
+     * @return the block, or null when a new one must be allocated
+     */
+    private B reuseBlock(M md) {
+        if(recycleBlocks == 0) {
+            return null;
+        }
+
+        B block;
+        synchronized(md.spareBlocks) {
+            do {
+                block = md.spareBlocks.poll();
+                if(block == null) {
+                    return null;
+                }
+                if(block.length() != md.nextBlockSize) {
+                    blocksHeld(-1);
+                }
+            } while(block.length() != md.nextBlockSize);
+        }
+
+        int[] stamp = md.stampHolder;
+        block.next().get(stamp);
+        block.next().set(md.curBlock, (stamp[0] & GENERATION) + GENERATION_STEP);
+        count(md, BagMetrics.BLOCKS_RECYCLED);
+        return block;
+    }
+
+    /**
+     * Count blocks allocated, or with a negative count, dropped from the
+     * lists and spares, when counting is on
+     */
+    private void blocksHeld(long count) {
+        if(metrics) {
+            long held = blocks.addAndGet(count);
+            if(count > 0) {
+                peakBlocks.accumulateAndGet(held, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Tell stealers and waiters about count items md just added to its
+     * list.
+     *
+     * The items were written with release stores, which would let the
+     * reads of the notify bits and of waiting below go first.  A stealer
+     * or waiter could then miss the items while we miss it, so one full
+     * fence per publish orders them, however many items it covers.
+     */
+    final void published(M md, int count) {
+        VarHandle.fullFence();
+        ADDED.setOpaque(md, md.added + count);
+        notifyStealers();
+        undrain(md);
+
+        //  Wake up as many waiters as there are new items
+        for(int i = 0; i < count && waiting.get() != 0; i++) {
+            signalWaiter();
+        }
+    }
+
+    /**
+     * Count an item md stole from the list it steals from
+     */
+    private void stole(M md) {
+        REMOVED.setOpaque(md, md.removed + 1);
+        STOLEN.setOpaque(md, md.stolen + 1);
+        subBags.get(md.stealFromBagIndex).taken.incrementAndGet();
+    }
+
+    /**
+     * Count items md moved from list into its own
+     */
+    private void movedIn(M md, SubBag<B> list, int count) {
+        MOVED_IN.setOpaque(md, md.movedIn + count);
+        list.taken.addAndGet(count);
+        if(count > 0) {
+            undrain(md);
+        }
+    }
+
+    /**
+     * Clear the drained flag of our list, which has items again
+     */
+    private void undrain(M md) {
+        if(hasStealDomains) {
+            SubBag<B> list = subBags.get(md.indexInBag);
+            if(list.drained) {
+                list.drained = false;
+            }
+        }
+    }
+
+    /**
+     * Count items md took out of its own list
+     */
+    private void removedLocal(M md, int count) {
+        REMOVED.setOpaque(md, md.removed + count);
+        if(metrics) {
+            COUNTS.setOpaque(md.counts, BagMetrics.LOCAL_HITS, md.counts[BagMetrics.LOCAL_HITS] + count);
+        }
+    }
+
+    /**
+     * Count an item md found while stealing but another thread took
+     */
+    private void stealFailed(M md) {
+        count(md, BagMetrics.FAILED_STEAL_CAS);
+    }
+
+    /**
+     * Count one BagMetrics event of md, when counting is on
+     */
+    private void count(M md, int counter) {
+        if(metrics) {
+            COUNTS.setOpaque(md.counts, counter, md.counts[counter] + 1);
+        }
+    }
+
+    /**
+     * Count items taken out of the bag by a thread that may not be
+     * registered.  Rare, so they go to the shared count
+     */
+    final void removedUnregistered(int count) {
+        retired.addAndGet(-count);
+    }
+
+    /**
+     * Called before taking items out of another list to add them to our
+     * own, when adopting an orphan or bulk stealing.
+     *
+     * While an item is on its way it is in neither list, and a stealer
+     * could walk both lists and find the bag empty although it is not.
+     * So a round only finds the bag empty while nobody is moving items:
+     * a move that started after the round's last look took nothing the
+     * round did not see, and one that ended before it cleared the
+     * notify bits of any round it overlapped.
+     */
+    private void startMove() {
+        moving.incrementAndGet();
+    }
+
+    /**
+     * Called once the items taken since startMove are all in our list.
+     * They were written with release stores, so as in published a full
+     * fence keeps the read of the notify bits from going first: a round
+     * that set its bit before we read them has it cleared.
+     */
+    private void endMove() {
+        VarHandle.fullFence();
+        notifyStealers();
+        moving.decrementAndGet();
+    }
+
+    /**
+     * Called when md has no more items to remove in its current block
+     *
+     * @return true when md moved on to an older block of its list, or
+     *         took over items of a thread that left; false when there is
+     *         nothing left to do but steal
+     */
+    private boolean nextLocalBlock(M md) {
+        // the last block in the list is kept
+        if (md.curBlock != null && md.curBlock.next().getReference() != null) {
+            //  and one emptying them smaller ones
+            if(md.nextBlockSize > blockSize) {
+                md.nextBlockSize = Math.max(blockSize, md.nextBlockSize / 2);
+            }
+
+            md.curBlock = deleteHeadBlock(md);
+            if(md.curBlock != null) {
+                md.indexInBlock = md.curBlock.length();
+                return true;
+            }
+            md.indexInBlock = 0;
+        }
+
+        // our list is empty, take over the items of a thread that left
+        return orphans.get() > 0 && adoptOrphan(md);
+    }
+
+    /**
+     * Enqueue the calling thread as a waiter, before its last look at
+     * the bag.
+     *
+     * A waiter enqueues itself before that look, and an add writes its
+     * item before it looks for waiters.  So either that look finds the
+     * item, or the add finds the waiter and unparks it.  A waiter that
+     * was dequeued by an add but leaves without looking at the bag again
+     * passes the wakeup on, so no item is left behind parked consumers.
+     */
+    private void startWaiting() {
+        waiting.incrementAndGet();
+        waiters.add(Thread.currentThread());
+    }
+
+    private void park(boolean timed, long nanos) {
+        if(timed) {
+            LockSupport.parkNanos(this, nanos);
+        } else {
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Dequeue the calling thread after it found an item or woke up
+     *
+     * @param found true when the thread leaves with an item, without
+     *              looking at the bag again
+     */
+    private void stopWaiting(boolean found) {
+        //  Not in the queue anymore means an add signalled us
+        boolean signalled = !waiters.remove(Thread.currentThread());
+        waiting.decrementAndGet();
+
+        if(found && signalled) {
+            signalWaiter();
+        }
+    }
+
+    private void signalWaiter() {
+        Thread waiter = waiters.poll();
+        if(waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Take an item into md: from our own list, from an orphan we adopt,
+     * or from another list
+     *
+     * @return false when the bag is empty
+     */
+    final boolean removeSlot(M md) {
+        while(true) {
+            //  No more items to remove in this block, so attempt to
+            //  remove from an older block, or one taken over, or steal.
+            //  Adopting can leave us in a new, empty head block when a
+            //  stealer took the last item it moved, so look again
+            if(md.indexInBlock <= 0) {
+                if(!nextLocalBlock(md)) {
+                    return steal(md);
+                }
+                continue;
+            }
+
+            if(md.takeSlot(md.curBlock, --md.indexInBlock)) {
+                removedLocal(md, 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Empty the current block of our list in one pass, and go through
+     * removeSlot only to cross into the next block, adopt or steal.
+     * Each item md takes is handed to sink.
+     *
+     * @return the number of items taken, less than max when the bag ran
+     *         empty
+     */
+    final int drainSlots(M md, int max, Consumer<M> sink) {
+        int drained = 0;
+        while(drained < max) {
+            B block = md.curBlock;
+            while(drained < max && md.indexInBlock > 0) {
+                if(md.takeSlot(block, --md.indexInBlock)) {
+                    removedLocal(md, 1);
+                    sink.accept(md);
+                    drained++;
+                }
+            }
+
+            if(drained == max || !removeSlot(md)) {
+                break;
+            }
+            sink.accept(md);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Take an item into md, parking until an add wakes us up while the
+     * bag is empty (see startWaiting)
+     *
+     * @return false when the bag stayed empty until the timeout
+     */
+    final boolean awaitSlot(M md, boolean timed, long nanos) throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+
+        while(true) {
+            if(removeSlot(md)) {
+                return true;
+            }
+
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if(timed) {
+                nanos = deadline - System.nanoTime();
+                if(nanos <= 0) {
+                    return false;
+                }
+            }
+
+            startWaiting();
+            boolean found = removeSlot(md);
+            if(!found) {
+                park(timed, nanos);
+            }
+            stopWaiting(found);
+
+            if(found) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take an item into md, else park once (see startWaiting).  ready is
+     * asked once we are enqueued as a waiter, and we do not park when it
+     * says the caller has something else to try.  Whoever makes ready
+     * true calls wakeWaiter afterwards, so either we see it or we are
+     * woken.
+     *
+     * @return true when an item was taken
+     */
+    final boolean awaitSlotOnce(M md, boolean timed, long nanos, BooleanSupplier ready) {
+        if(removeSlot(md)) {
+            return true;
+        }
+
+        startWaiting();
+        boolean found = removeSlot(md);
+        if(!found && !ready.getAsBoolean()) {
+            park(timed, nanos);
+        }
+        stopWaiting(found);
+        return found;
+    }
+
+    /**
+     * Wake one parked waiter, if there is one, with no item for it
+     */
+    final void wakeWaiter() {
+        if(waiting.get() != 0) {
+            signalWaiter();
+        }
+    }
+
+    /**
+     * Steal an item into md from another list, or decide that the bag is
+     * empty (see startSteal)
+     *
+     * @return false when the bag is empty
+     */
+    private boolean steal(M md) {
+        if(!startSteal(md)) {
+            return false;
+        }
+
+        while(nextStealSlot(md)) {
+            B block = md.stealBlock;
+            int index = md.stealFromBlockIndex++;
+            if(block.holdsItem(index)) {
+                if(md.takeSlot(block, index)) {
+                    stole(md);
+                    if(bulkSteal) {
+                        stealHalf(md, block);
+                    }
+                    return true;
+                }
+                stealFailed(md);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move up to half of the items left in block, past the one just
+     * stolen, into our own list.  The owner removes from the other end
+     * of the block, so we take the older half.
+     */
+    private void stealHalf(M md, B block) {
+        int live = 0;
+        for(int i = md.stealFromBlockIndex; i < block.length(); i++) {
+            if(block.holdsItem(i)) {
+                live++;
+            }
+        }
+        if(live < 2) {
+            return;
+        }
+
+        startMove();
+        int toMove = live / 2;
+        int moved = 0;
+        while(moved < toMove && md.stealFromBlockIndex < block.length()) {
+            if(moveSlot(md, block, md.stealFromBlockIndex++)) {
+                moved++;
+            }
+        }
+        movedIn(md, subBags.get(md.stealFromBagIndex), moved);
+        endMove();
+    }
+
+    /**
+     * Move the items of block, a block of an orphaned list, into the
+     * list of md, between startMove and endMove.  Stealers may still be
+     * taking items, each goes to exactly one of them.
+     *
+     * @return the number of items moved
+     */
+    private int adoptBlock(M md, B block) {
+        int moved = 0;
+        for(int i = block.length() - 1; i >= 0; i--) {
+            if(moveSlot(md, block, i)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move the item in slot i of block, if there is one, into our list
+     * without telling anyone, the caller does
+     */
+    private boolean moveSlot(M md, B block, int i) {
+        if(md.curBlock == null || md.indexInBlock == md.curBlock.length()) {
+            pushBlock(md);
+        }
+        if(block.moveTo(i, md.curBlock, md.indexInBlock)) {
+            md.indexInBlock++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start a steal (TryRemoveAny in the paper).
+     *
+     * Each round sets our notify bit and then walks every other list
+     * once.  Adds clear all notify bits after writing their item, so when
+     * a round finds nothing and our bit is still set, every item present
+     * when the round began was gone by the time we walked past it, and
+     * no add completed since.  The bag was empty at the end of the round.
+     *
+     * @return false when there are no other lists to steal from
+     */
+    private boolean startSteal(M md) {
+        count(md, BagMetrics.STEAL_ATTEMPTS);
+        int nThreads = getNThreads();
+
+        //  Only our own list, and it is empty
+        if(nThreads <= 1) {
+            return false;
+        }
+
+        if(!md.isStealInit) {
+            //  Start near our own index, nextStealBlock will look starting at next slot
+            md.stealFromBagIndex = md.indexInBag;
+            md.stealFromSlot = md.indexInBag % nThreads;
+            md.stealBlock = null;
+            md.isStealInit = true;
+        }
+
+        if(!hasStealDomains) {
+            md.stealOutsideDomain = true;
+        } else if(md.stealBlock == null) {
+            chooseStealDomain(md);
+        }
+
+        notifyStart(md);
+        md.stealChoseList = stealPolicy == StealPolicy.ROUND_ROBIN;
+        md.stealListsWalked = 0;
+        return true;
+    }
+
+    /**
+     * Decide whether the round starting now walks the lists of our own
+     * steal domain before the others.  It does unless no list is in our
+     * domain, or all are, or stealers walked every list of our domain to
+     * its end and no owner added to one since.
+     *
+     * Only called when a round starts without a list to carry on in, and
+     * after a round that did not find the bag empty.  A steal that finds
+     * items in another domain keeps taking them until its round is over.
+     */
+    private void chooseStealDomain(M md) {
+        int[] slots = activeSlots;
+        int inDomain = 0;
+        boolean itemsInDomain = false;
+        for(int index : slots) {
+            SubBag<B> list = subBags.get(index);
+            if(index != md.indexInBag && list.domain == md.stealDomain) {
+                inDomain++;
+                itemsInDomain = itemsInDomain || (!list.drained && list.head != null);
+            }
+        }
+        md.stealDomainLists = inDomain;
+        md.stealOutsideDomain = inDomain == 0 || inDomain == slots.length - 1 || !itemsInDomain;
+    }
+
+    /**
+     * @return the slot of the list the steal policy moves on to
+     */
+    private int chooseList(int[] slots) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(slots.length);
+        if(stealPolicy == StealPolicy.RANDOM) {
+            return first;
+        }
+
+        int second = random.nextInt(slots.length);
+        return approximateSize(slots[first]) >= approximateSize(slots[second]) ? first : second;
+    }
+
+    /**
+     * A guess at the number of items left in a list: what its owner put
+     * in and did not take out itself, less what other threads stole or
+     * moved out of it.  The counts are read without synchronizing, so the
+     * guess can be off in either direction for a moment, but a list that
+     * stealers emptied soon looks empty.
+     */
+    private long approximateSize(int indexInBag) {
+        SubBag<B> list = subBags.get(indexInBag);
+        ListCursor<B> cursor = list.cursor;
+        if(cursor == null) {
+            return 0;
+        }
+        return itemsPutIn(cursor) - list.taken.get();
+    }
+
+    /**
+     * @return the items the thread of cursor put into its list less those
+     *         it took out of it again
+     */
+    private static long itemsPutIn(ListCursor<?> cursor) {
+        return (long) ADDED.getOpaque(cursor) + (long) MOVED_IN.getOpaque(cursor)
+                - (long) REMOVED.getOpaque(cursor) + (long) STOLEN.getOpaque(cursor);
+    }
+
+    /**
+     * Make sure md.stealBlock has a slot left to look at,
+     * md.stealFromBlockIndex, moving on through the lists as needed
+     *
+     * @return false once a full round found the bag empty
+     */
+    private boolean nextStealSlot(M md) {
+        while(md.stealBlock == null || md.stealFromBlockIndex >= md.stealBlock.length()) {
+            nextStealBlock(md);
+
+            //  Walked every list of our own steal domain, cross to the
+            //  others.  Only this part of the round counts for empty
+            if(!md.stealOutsideDomain && (md.stealBlock == null || md.stealListsWalked >= md.stealDomainLists)) {
+                md.stealOutsideDomain = true;
+                md.stealListsWalked = 0;
+                continue;
+            }
+
+            //  Our steal position may have been in the middle of a list
+            //  when the round started, so one list more than the others
+            //  makes sure each of them was walked in full
+            if(md.stealListsWalked >= getNThreads()) {
+                if(notifyCheck(md) && moving.get() == 0) {
+                    count(md, BagMetrics.EMPTY_SCANS);
+
+                    //  The next steal starts a new round
+                    md.stealBlock = null;
+                    return false;
+                }
+
+                //  Something was added or moved meanwhile, go another round.
+                //  It starts in our own domain if that has items again
+                notifyStart(md);
+                md.stealListsWalked = 0;
+                if(hasStealDomains) {
+                    chooseStealDomain(md);
+                    if(!md.stealOutsideDomain) {
+                        md.stealBlock = null;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the steal position to the next block, in the current list or
+     * the next one that is not empty, only looking at lists of our own
+     * steal domain until stealOutsideDomain is set.  Every list walked
+     * to its end, or found empty, is counted in stealListsWalked.
+     * Leaves stealBlock null when all lists looked at are empty.
+     */
+    private void nextStealBlock(M md) {
+        //  Move on to the next block in the current list.  We walked
+        //  every slot of the block we are leaving, so it is now empty:
+        //  delete it.  A deleted block is no longer anyone's predecessor
+        if(md.stealBlock != null) {
+            boolean deleted = deleteBlock(md);
+            if(deleted) {
+                count(md, BagMetrics.BLOCKS_RECLAIMED);
+                blocksHeld(-1);
+            }
+
+            //  Help finish a deletion left pending behind this block
+            while(helpUnlinkNext(md.stealBlock, md.stampHolder));
+
+            B next = md.stealBlock.next().get(md.stampHolder);
+            if(next != null) {
+                if(!deleted) {
+                    md.stealPrev = md.stealBlock;
+                    md.stealPrevGeneration = md.stampHolder[0] & GENERATION;
+                }
+                setStealBlock(md, next);
+                return;
+            }
+
+            //  Walked the whole list, make sure its owner is still around
+            md.stealListsWalked++;
+            SubBag<B> list = subBags.get(md.stealFromBagIndex);
+            if(hasStealDomains && !list.drained) {
+                list.drained = true;
+            }
+            orphanIfDead(list);
+        }
+
+        //  Find the next list to steal from.
+        //  The scan wraps around to the list we just left, which may be
+        //  the only one being added to, but never visits our own list
+        int[] slots = activeSlots;
+
+        //  The first time a steal leaves a list the policy picks where
+        //  to go.  The lists walked so far may not be the ones that
+        //  follow, so the round counts from here
+        if(!md.stealChoseList && slots.length > 0) {
+            md.stealFromSlot = (chooseList(slots) + slots.length - 1) % slots.length;
+            md.stealListsWalked = 0;
+            md.stealChoseList = true;
+        }
+
+        for(int i=1; i <= slots.length; i++) {
+            int slot = (md.stealFromSlot + i) % slots.length;
+            int index = slots[slot];
+            if(index == md.indexInBag) {
+                continue;
+            }
+
+            SubBag<B> list = subBags.get(index);
+            if(!md.stealOutsideDomain && list.domain != md.stealDomain) {
+                continue;
+            }
+
+            B head = list.head;
+            if(head != null) {
+                md.stealFromSlot = slot;
+                md.stealFromBagIndex = index;
+                md.stealPrev = null;
+                setStealBlock(md, head);
+                return;
+            }
+            md.stealListsWalked++;
+        }
+
+        md.stealBlock = null;
+    }
+
+    private void setStealBlock(M md, B block) {
+        md.stealBlock = block;
+        md.stealFromBlockIndex = 0;
+    }
+
+    /**
+     * Set our notify bit (NotifyStart in the paper)
+     */
+    private void notifyStart(M md) {
+        long bit = 1L << md.indexInBag;
+        AtomicLong word = notifyWords.get(md.indexInBag >>> 6);
+
+        long bits = word.get();
+        while((bits & bit) == 0 && !word.compareAndSet(bits, bits | bit)) {
+            bits = word.get();
+        }
+    }
+
+    /**
+     * @return true when our notify bit is still set, so nothing was added
+     *         since notifyStart (NotifyCheck in the paper)
+     */
+    private boolean notifyCheck(M md) {
+        return (notifyWords.get(md.indexInBag >>> 6).get() & (1L << md.indexInBag)) != 0;
+    }
+
+    /**
+     * Clear every notify bit, called after each add (NotifyAll in the
+     * paper).  Words are only written when a stealer has set a bit in
+     * them, so while nobody is scanning this is one read per 64 lists.
+     */
+    private void notifyStealers() {
+        int nWords = notifyWords.size();
+        for(int i = 0; i < nWords; i++) {
+            AtomicLong word = notifyWords.get(i);
+            if(word != null && word.get() != 0) {
+                word.set(0);
+            }
+        }
+    }
+
+    /**
+     * Unlink the current steal block, which was found to be empty, from
+     * its list (deleteBlock in the paper).  The head block of a list is
+     * never deleted here, it belongs to its owner (see deleteHeadBlock).
+     *
+     * Only the owner writes items, and only into its head block, so once
+     * a stealer reached the block through a predecessor every slot it
+     * walked past stays empty.  Should the owner make the block its head
+     * again it freezes the predecessor first, and the mark below fails.
+     *
+     * First mark2 is set on the predecessor's link, which fails when the
+     * predecessor is itself being deleted.  Then mark1 freezes the
+     * block's own link and the predecessor is swung past it.  If the
+     * predecessor gets deleted in between it is looked up again from the
+     * head, or the unlink is left to whoever walks past it next.
+     *
+     * Blocks unlinked here are not reused, so a stealer still holding
+     * one keeps it alive and can safely follow its frozen link back into
+     * the list; the garbage collector frees it once nobody does.  Only
+     * head blocks its owner deleted are recycled (see reuseBlock), and
+     * only as the new head of the same list.  A stealer still holding
+     * one then takes items of that list and walks on into it, as it
+     * would from the head.  Its generation keeps the mark below from
+     * succeeding on a predecessor recycled since we walked past it: the
+     * block after it would not be the one we found empty.  With spares
+     * reused last emptied first, a block never comes back above one
+     * that was below it, so iterators still see no item twice.
+     *
+     * @return true when the block is marked as deleted
+     */
+    private boolean deleteBlock(M md) {
+        B prev = md.stealPrev;
+        B block = md.stealBlock;
+        int generation = md.stealPrevGeneration;
+
+        if(prev == null || !prev.next().compareAndSet(block, block, generation, generation | MARK2)) {
+            return false;
+        }
+
+        while(!helpUnlinkNext(prev, md.stampHolder)) {
+            if(prev.next().getReference() != block) {
+                //  Someone walking past finished the unlink for us
+                return true;
+            }
+
+            B found = findPrev(subBags.get(md.stealFromBagIndex), block, md.stampHolder);
+            if(found == null || found == prev) {
+                return true;
+            }
+            prev = found;
+        }
+
+        return true;
+    }
+
+    /**
+     * Unlink the (empty) head block of our own list and move to the next
+     * one, skipping blocks stealers are in the middle of deleting.  The
+     * head is kept for reuse if there is room among our spares.
+     *
+     * @return the new head, or null if the list is now empty
+     */
+    private B deleteHeadBlock(M md) {
+        int[] stamp = md.stampHolder;
+
+        //  Freeze the head's link, so stealers can no longer start deleting
+        //  the block after it.  One already marked with mark2 was found
+        //  empty by its stealer, unlink it along with the head.
+        B next = mark1(md.curBlock, stamp);
+        while(next != null && (stamp[0] & MARK2) != 0) {
+            next = mark1(next, stamp);
+        }
+
+        subBags.get(md.indexInBag).head = next;
+        count(md, BagMetrics.BLOCKS_RECLAIMED);
+        if(!keepSpare(md, md.curBlock)) {
+            blocksHeld(-1);
+        }
+        return next;
+    }
+
+    /**
+     * @return true when block went among the spares of md, false when
+     *         they are full
+     */
+    private boolean keepSpare(M md, B block) {
+        if(recycleBlocks == 0) {
+            return false;
+        }
+        synchronized(md.spareBlocks) {
+            if(md.spareBlocks.size() < recycleBlocks) {
+                md.spareBlocks.push(block);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If the block after prev is marked for deletion, freeze its link
+     * and swing prev past it
+     *
+     * @return true when a block was unlinked
+     */
+    private static <B extends ListBlock<B>> boolean helpUnlinkNext(B prev, int[] stamp) {
+        B block = prev.next().get(stamp);
+        int prevStamp = stamp[0];
+
+        //  Nothing pending, or prev is frozen and its own deleter will move the mark
+        if(block == null || (prevStamp & MARKS) != MARK2) {
+            return false;
+        }
+
+        B next = mark1(block, stamp);
+        return prev.next().compareAndSet(block, next, prevStamp, (prevStamp & GENERATION) | (stamp[0] & MARK2));
+    }
+
+    /**
+     * Set mark1 on the link of block
+     *
+     * @return the frozen next reference, with its marks left in stamp[0]
+     */
+    private static <B extends ListBlock<B>> B mark1(B block, int[] stamp) {
+        while(true) {
+            B next = block.next().get(stamp);
+            if((stamp[0] & MARK1) != 0) {
+                return next;
+            }
+            if(block.next().compareAndSet(next, next, stamp[0], stamp[0] | MARK1)) {
+                stamp[0] |= MARK1;
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Walk the list from its head looking for the live predecessor of block
+     *
+     * @return the predecessor, or null when block is now the head, is no
+     *         longer in the list, or its predecessor is being deleted
+     */
+    private static <B extends ListBlock<B>> B findPrev(SubBag<B> subBag, B block, int[] stamp) {
+        B prev = subBag.head;
+
+        while(prev != null && prev != block) {
+            B next = prev.next().get(stamp);
+            if(next == block) {
+                return (stamp[0] & MARK1) == 0 ? prev : null;
+            }
+            prev = next;
+        }
+
+        return null;
+    }
+
+    /**
+     * Take over the items of an orphaned list: move them into our own
+     * list, where they are local hits from now on, then free the slot.
+     *
+     * @return true when any item was moved
+     */
+    private boolean adoptOrphan(M md) {
+        for(int index : activeSlots) {
+            SubBag<B> orphan = subBags.get(index);
+            if(orphan.state.get() != SubBag.ORPHANED || !orphan.state.compareAndSet(SubBag.ORPHANED, SubBag.ADOPTING)) {
+                continue;
+            }
+            orphans.decrementAndGet();
+
+            int moved = 0;
+            startMove();
+            for(B block = orphan.head; block != null; block = block.next().getReference()) {
+                moved += adoptBlock(md, block);
+            }
+            movedIn(md, orphan, moved);
+            endMove();
+
+            freeSlot(index, orphan);
+            if(moved > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Orphan the list of a thread that died without leaving the bag
+     */
+    private void orphanIfDead(SubBag<B> subBag) {
+        if(subBag.state.get() == SubBag.ACTIVE && !subBag.owner.isAlive()
+                && subBag.state.compareAndSet(SubBag.ACTIVE, SubBag.ORPHANED)) {
+            orphans.incrementAndGet();
+        }
+    }
+
+    private void freeSlot(int index, SubBag<B> subBag) {
+        try {
+            registeredThreadLock.lock();
+
+            dropBlocks(subBag);
+            subBag.head = null;
+            subBag.owner = null;
+            retire(subBag.cursor);
+            subBag.cursor = null;
+            subBag.state.set(SubBag.FREE);
+
+            activeSlots = withoutSlot(activeSlots, index);
+            freeSlots.push(index);
+        } finally {
+            registeredThreadLock.unlock();
+        }
+    }
+
+    /**
+     * Count the blocks still linked in a list about to be freed as
+     * dropped.  Freezes each link on the way, like deleteHeadBlock, so
+     * no stealer starts deleting a block we counted; the ones already
+     * marked were counted by their stealer.
+     */
+    private void dropBlocks(SubBag<B> subBag) {
+        if(!metrics) {
+            return;
+        }
+
+        int[] stamp = new int[1];
+        long dropped = 0;
+        B block = subBag.head;
+        while(block != null) {
+            dropped++;
+            block = mark1(block, stamp);
+            while(block != null && (stamp[0] & MARK2) != 0) {
+                block = mark1(block, stamp);
+            }
+        }
+        blocksHeld(-dropped);
+    }
+
+    /**
+     * Keep the counts of a cursor about to be dropped from its list.  Its
+     * thread left, so they no longer change, and its spares go with it
+     */
+    private void retire(ListCursor<B> cursor) {
+        if(cursor != null) {
+            retired.addAndGet(cursor.added - cursor.removed);
+            if(metrics) {
+                for(int i = 0; i < BagMetrics.COUNTERS; i++) {
+                    retiredCounts.addAndGet(i, cursor.counts[i]);
+                }
+            }
+            dropSpares(cursor);
+        }
+    }
+
+    /**
+     * @return the number of spare blocks of cursor dropped
+     */
+    private int dropSpares(ListCursor<B> cursor) {
+        int dropped;
+        synchronized(cursor.spareBlocks) {
+            dropped = cursor.spareBlocks.size();
+            cursor.spareBlocks.clear();
+        }
+        blocksHeld(-dropped);
+        return dropped;
+    }
+
+    private static int[] withoutSlot(int[] slots, int index) {
+        int[] result = new int[slots.length - 1];
+        for(int i = 0, j = 0; i < slots.length; i++) {
+            if(slots[i] != index) {
+                result[j++] = slots[i];
+            }
+        }
+        return result;
+    }
+
+    final M localMetadataOrRegister() {
+        M md = localMetadata.get();
+        if(md == null) {
+            registerThread();
+            md = localMetadata.get();
+        }
+        return md;
+    }
+
+    /**
+     * @return true when the thread is already registered
+     */
+    public boolean isRegistered() {
+        return localMetadata.get() != null;
+    }
+
+    /**
+     * Register a new thread with this Bag.  Threads are registered
+     * implicitly on their first add/remove, calling this up front just
+     * keeps the registration off the first operation.
+     *
+     * The thread takes over the list of a thread that left or died,
+     * along with the items in it, if there is one.  Otherwise it gets a
+     * new list, reusing a freed slot when possible.
+     *
+     * @return true when the thread is successfully registered
+     */
+    public boolean registerThread() {
+        return registerThread(stealDomains == null ? 0 : stealDomains.applyAsInt(Thread.currentThread()));
+    }
+
+    /**
+     * Register a new thread with this Bag in the given steal domain, see
+     * ConcurrentBagBuilder.stealDomains.  Overrides the domain the
+     * builder's mapping would give the thread.
+     *
+     * @return true when the thread is successfully registered
+     */
+    public boolean registerThread(int stealDomain) {
+        Thread thread = Thread.currentThread();
+        if(isRegistered()) {
+            logger.error("Cannot register thread " + thread.getId() + " thread is already registered");
+            return false;
+        }
+
+        try {
+            registeredThreadLock.lock();
+
+            for(int index : activeSlots) {
+                orphanIfDead(subBags.get(index));
+            }
+
+            SubBag<B> subBag = null;
+            int indexInBag = -1;
+            for(int index : activeSlots) {
+                SubBag<B> orphan = subBags.get(index);
+                if(orphan.state.compareAndSet(SubBag.ORPHANED, SubBag.ADOPTING)) {
+                    orphans.decrementAndGet();
+                    subBag = orphan;
+                    indexInBag = index;
+                    break;
+                }
+            }
+
+            if(subBag == null) {
+                Integer free = freeSlots.poll();
+                if(free != null) {
+                    indexInBag = free;
+                    subBag = subBags.get(indexInBag);
+                } else {
+                    subBag = new SubBag<>(thread);
+                    indexInBag = subBags.add(subBag);
+
+                    if((indexInBag & 63) == 0) {
+                        notifyWords.add(new AtomicLong(0));
+                    }
+                }
+
+                int[] slots = Arrays.copyOf(activeSlots, activeSlots.length + 1);
+                slots[slots.length - 1] = indexInBag;
+                activeSlots = slots;
+            }
+
+            subBag.domain = stealDomain;
+            subBag.drained = false;
+            if(stealDomain != 0) {
+                hasStealDomains = true;
+            }
+
+            //  Owner first, so no stealer sees an active list with a dead owner
+            subBag.owner = thread;
+            subBag.state.set(SubBag.ACTIVE);
+
+            //  Create the local metadata for this thread.  The head of a
+            //  list taken over is treated as full, so we only remove from it
+            M md = newMetaData(indexInBag);
+            md.curBlock = subBag.head;
+            md.indexInBlock = md.curBlock == null ? 0 : md.curBlock.length();
+            md.nextBlockSize = blockSize;
+            md.stealDomain = stealDomain;
+
+            //  A list taken over keeps its items, and its estimate with them
+            if(subBag.cursor != null) {
+                subBag.taken.addAndGet(-itemsPutIn(subBag.cursor));
+            } else {
+                subBag.taken.set(0);
+            }
+            retire(subBag.cursor);
+            subBag.cursor = md;
+            localMetadata.set(md);
+
+            return true;
+        } finally {
+            registeredThreadLock.unlock();
+        }
+    }
+
+    /**
+     * Leave the bag.  Items left in the calling thread's list stay in the
+     * bag, to be taken over by another thread.  Any handle the thread
+     * obtained must not be used afterwards, the next add/remove
+     * registers the thread again.
+     *
+     * @return true when the thread was registered
+     */
+    public boolean deregisterThread() {
+        M md = localMetadata.get();
+        if(md == null) {
+            logger.error("Cannot deregister thread " + Thread.currentThread().getId() + " thread is not registered");
+            return false;
+        }
+
+        localMetadata.remove();
+        subBags.get(md.indexInBag).state.set(SubBag.ORPHANED);
+        orphans.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Approximate number of items in the bag: what every thread added
+     * less what it removed.  Each thread counts its own adds and removes
+     * without atomics, and size sums the counts without stopping anyone,
+     * so it is weakly consistent: adds and removes that overlap the call
+     * may or may not be counted, and the result is a value the bag may
+     * never have had at any one moment.  For monitoring and autoscaling;
+     * only remove tells reliably whether an item is there.
+     */
+    public int size() {
+        long size = retired.get();
+        for(int index : activeSlots) {
+            ListCursor<B> cursor = subBags.get(index).cursor;
+            if(cursor != null) {
+                size += (long) ADDED.getOpaque(cursor) - (long) REMOVED.getOpaque(cursor);
+            }
+        }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size));
+    }
+
+    /**
+     * @return true when size is 0, with the same weak consistency
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Number of items in the list of each thread, for spotting threads
+     * that hoard items or starve.  Walks every slot of every list, and
+     * is no more consistent than size.  A list left behind by a thread
+     * is shown under that thread until another one takes it over.
+     */
+    public Map<Thread, Integer> occupancy() {
+        Map<Thread, Integer> occupancy = new LinkedHashMap<>();
+        for(int index : activeSlots) {
+            SubBag<B> list = subBags.get(index);
+            Thread owner = list.owner;
+            if(owner == null) {
+                continue;
+            }
+
+            int items = 0;
+            for(B block = list.head; block != null; block = block.next().getReference()) {
+                items += block.itemCount();
+            }
+            occupancy.merge(owner, items, Integer::sum);
+        }
+        return occupancy;
+    }
+
+    /**
+     * A snapshot of the BagMetrics counts of all threads, those that left
+     * included.  All 0 unless the bag was built with
+     * ConcurrentBagBuilder.metrics().
+     */
+    public BagMetrics metrics() {
+        long[] counts = new long[BagMetrics.COUNTERS];
+        if(metrics) {
+            for(int i = 0; i < counts.length; i++) {
+                counts[i] = retiredCounts.get(i);
+            }
+            for(int index : activeSlots) {
+                ListCursor<B> cursor = subBags.get(index).cursor;
+                if(cursor != null) {
+                    for(int i = 0; i < counts.length; i++) {
+                        counts[i] += (long) COUNTS.getOpaque(cursor.counts, i);
+                    }
+                }
+            }
+        }
+        return new BagMetrics(counts, blocks.get(), peakBlocks.get());
+    }
+
+    /**
+     * Drop the spare blocks of the threads that neither added nor
+     * removed since the last call, see ConcurrentBagBuilder.recycleBlocks.
+     * A thread that goes quiet after a burst otherwise keeps its spares
+     * for as long as it stays registered.  Called periodically, say from
+     * a scheduled task, spares go after one to two periods of idleness.
+     *
+     * @return the number of blocks dropped
+     */
+    public int releaseIdleSpares() {
+        int released = 0;
+        for(int index : activeSlots) {
+            ListCursor<B> cursor = subBags.get(index).cursor;
+            if(cursor == null) {
+                continue;
+            }
+
+            long operations = (long) ADDED.getOpaque(cursor) + (long) REMOVED.getOpaque(cursor);
+            if(operations == cursor.operationsSeen) {
+                released += dropSpares(cursor);
+            }
+            cursor.operationsSeen = operations;
+        }
+        return released;
+    }
+
+    /**
+     * Items the calling thread's removes took from other threads' lists
+     * since it registered, kept whether or not metrics are on.  Items it
+     * moved into its own list while stealing count as its own once moved.
+     *
+     * @return the count, 0 when the thread is not registered
+     */
+    public long stolenByCurrentThread() {
+        M md = localMetadata.get();
+        return md == null ? 0 : md.stolen;
+    }
+
+    /**
+     * Register a ConcurrentBagMXBean for this bag with the platform MBean
+     * server, under bag:type=ConcurrentBag,name=name.  Unregister it
+     * with the returned name once the bag is no longer used, the server
+     * keeps the bag reachable until then.
+     *
+     * @return the name the bean is registered under
+     * @throws JMException when the name is invalid or already taken
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("bag:type=ConcurrentBag,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Monitor(), objectName);
+        return objectName;
+    }
+
+    private class Monitor implements ConcurrentBagMXBean {
+        @Override
+        public int getSize() {
+            return size();
+        }
+
+        @Override
+        public int getLists() {
+            return getNThreads();
+        }
+
+        @Override
+        public boolean isMetricsEnabled() {
+            return metrics;
+        }
+
+        @Override
+        public long getLocalHits() {
+            return metrics().localHits();
+        }
+
+        @Override
+        public long getStealAttempts() {
+            return metrics().stealAttempts();
+        }
+
+        @Override
+        public long getFailedStealCas() {
+            return metrics().failedStealCas();
+        }
+
+        @Override
+        public long getEmptyScans() {
+            return metrics().emptyScans();
+        }
+
+        @Override
+        public long getBlocksAllocated() {
+            return metrics().blocksAllocated();
+        }
+
+        @Override
+        public long getBlocksReclaimed() {
+            return metrics().blocksReclaimed();
+        }
+
+        @Override
+        public long getBlocksRecycled() {
+            return metrics().blocksRecycled();
+        }
+
+        @Override
+        public long getBlocks() {
+            return blocks.get();
+        }
+
+        @Override
+        public long getPeakBlocks() {
+            return peakBlocks.get();
+        }
+    }
+
+    /**
+     * @return the head block of each list stealers scan, as of now
+     */
+    final List<B> listHeads() {
+        List<B> heads = new ArrayList<>();
+        for(int index : activeSlots) {
+            B head = subBags.get(index).head;
+            if(head != null) {
+                heads.add(head);
+            }
+        }
+        return heads;
+    }
+
+    /**
+     *
+     * Get the number of lists stealers scan: those of registered threads
+     * and those orphaned but not yet taken over
+     *
+     * @return
+     */
+    final int getNThreads() {
+        return activeSlots.length;
+    }
+}
@@ -5,5 +5,20 @@ package bag;
  */
 public interface Bag<T> {
     void add(T item) throws Exception;
+
+    /**
+     * @return an item, or null when the bag is empty
+     */
     T remove() throws Exception;
+
+    /**
+     * @return about how many items are in the bag, without the guarantees
+     *         of remove while other threads add or remove
+     */
+    int size();
+
+    /**
+     * @return true when size is 0
+     */
+    boolean isEmpty();
 }
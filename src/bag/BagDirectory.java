@@ -0,0 +1,76 @@
+package bag;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, append-only directory of the per-thread lists of a bag,
+ * indexed by the registration index of the owning thread.
+ *
+ * Slots are held in segments whose sizes double (32, 64, 128, ...), so
+ * a lookup is two array reads no matter how many threads registered,
+ * and growing the directory never copies or moves an existing slot.
+ */
+class BagDirectory<E> {
+    private static final int FIRST_SEGMENT_BITS = 5;
+    private static final int FIRST_SEGMENT_SIZE = 1 << FIRST_SEGMENT_BITS;
+    private static final int MAX_SEGMENTS = Integer.SIZE - FIRST_SEGMENT_BITS - 1;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<E>> segments;
+    private final AtomicInteger size;
+
+    BagDirectory() {
+        segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+        segments.set(0, new AtomicReferenceArray<E>(FIRST_SEGMENT_SIZE));
+        size = new AtomicInteger(0);
+    }
+
+    /**
+     * Append an entry to the directory
+     *
+     * @return the index the entry was stored at
+     */
+    int add(E entry) {
+        int index = size.getAndIncrement();
+        int pos = index + FIRST_SEGMENT_SIZE;
+        int segment = segmentOf(pos);
+
+        AtomicReferenceArray<E> slots = segments.get(segment);
+        if(slots == null) {
+            //  Whoever wins the CAS allocates the segment, everyone else uses it
+            segments.compareAndSet(segment, null, new AtomicReferenceArray<E>(segmentSize(segment)));
+            slots = segments.get(segment);
+        }
+
+        slots.set(pos - segmentSize(segment), entry);
+        return index;
+    }
+
+    /**
+     * @return the entry at index, or null when that slot has been
+     *         claimed by add but not yet published
+     */
+    E get(int index) {
+        int pos = index + FIRST_SEGMENT_SIZE;
+        int segment = segmentOf(pos);
+
+        AtomicReferenceArray<E> slots = segments.get(segment);
+        return slots == null ? null : slots.get(pos - segmentSize(segment));
+    }
+
+    /**
+     * @return the number of indexes handed out so far, slots below this
+     *         bound may still be unpublished (see get)
+     */
+    int size() {
+        return size.get();
+    }
+
+    private static int segmentOf(int pos) {
+        return (Integer.SIZE - 1 - Integer.numberOfLeadingZeros(pos)) - FIRST_SEGMENT_BITS;
+    }
+
+    private static int segmentSize(int segment) {
+        return FIRST_SEGMENT_SIZE << segment;
+    }
+}
@@ -0,0 +1,39 @@
+package bag;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A registered thread's direct access to a bag.  Holding on to the handle
+ * skips the registration check and per-thread lookup of the Bag methods,
+ * so it must only ever be used by the thread that obtained it.
+ */
+public interface BagHandle<T> {
+    void add(T item);
+
+    /**
+     * @return an item, or null when the bag is empty
+     */
+    T remove();
+
+    void addAll(Collection<? extends T> items);
+
+    /**
+     * Remove up to max items and hand them to sink
+     *
+     * @return the number of items removed, less than max when the bag ran
+     *         empty
+     */
+    int drainTo(Consumer<? super T> sink, int max);
+
+    /**
+     * @return an item, waiting for one to be added while the bag is empty
+     */
+    T take() throws InterruptedException;
+
+    /**
+     * @return an item, or null when the bag stayed empty until timeout
+     */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException;
+}
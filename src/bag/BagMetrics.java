@@ -0,0 +1,113 @@
+package bag;
+
+/**
+ * Counts of what a bag's threads did, summed over the threads when the
+ * bag's metrics() was called.  Each thread counts its own without
+ * atomics and the sums are read without stopping anyone, so like size
+ * a snapshot is weakly consistent.  Counting is off unless the bag was
+ * built with ConcurrentBagBuilder.metrics(); the counts are then 0.
+ *
+ * A falling share of local hits among removes, with steal attempts and
+ * empty scans going up, says threads remove where others add.  Failed
+ * steal CAS means stealers fight over the same slots.  Blocks allocated
+ * and recycled running ahead of blocks reclaimed says the lists are
+ * growing; allocations well above recycling under steady load, that
+ * more spare blocks would save garbage.  The peak of blocks held is
+ * what the heap had to make room for at the worst moment.
+ */
+public final class BagMetrics {
+    //  Indexes of the counters kept by each thread
+    static final int LOCAL_HITS = 0;
+    static final int STEAL_ATTEMPTS = 1;
+    static final int FAILED_STEAL_CAS = 2;
+    static final int EMPTY_SCANS = 3;
+    static final int BLOCKS_ALLOCATED = 4;
+    static final int BLOCKS_RECLAIMED = 5;
+    static final int BLOCKS_RECYCLED = 6;
+    static final int COUNTERS = 7;
+
+    private final long[] counts;
+    private final long blocks, peakBlocks;
+
+    BagMetrics(long[] counts, long blocks, long peakBlocks) {
+        this.counts = counts;
+        this.blocks = blocks;
+        this.peakBlocks = peakBlocks;
+    }
+
+    /**
+     * @return removes that found an item in the thread's own list
+     */
+    public long localHits() {
+        return counts[LOCAL_HITS];
+    }
+
+    /**
+     * @return removes that went on to steal, having found their own
+     *         list empty
+     */
+    public long stealAttempts() {
+        return counts[STEAL_ATTEMPTS];
+    }
+
+    /**
+     * @return items a stealer found but lost to another thread taking
+     *         them first
+     */
+    public long failedStealCas() {
+        return counts[FAILED_STEAL_CAS];
+    }
+
+    /**
+     * @return steals that walked every list and found the bag empty
+     */
+    public long emptyScans() {
+        return counts[EMPTY_SCANS];
+    }
+
+    /**
+     * @return new blocks, not counting the recycled ones
+     */
+    public long blocksAllocated() {
+        return counts[BLOCKS_ALLOCATED];
+    }
+
+    /**
+     * @return blocks unlinked from their list once empty, by the owner
+     *         or a stealer
+     */
+    public long blocksReclaimed() {
+        return counts[BLOCKS_RECLAIMED];
+    }
+
+    /**
+     * @return emptied head blocks reused instead of allocating, see
+     *         ConcurrentBagBuilder.recycleBlocks
+     */
+    public long blocksRecycled() {
+        return counts[BLOCKS_RECYCLED];
+    }
+
+    /**
+     * @return blocks in the lists or kept as spares, each holding up to
+     *         its block size of references
+     */
+    public long blocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the most blocks held at once since the bag was built
+     */
+    public long peakBlocks() {
+        return peakBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return "localHits=" + localHits() + " stealAttempts=" + stealAttempts() + " failedStealCas=" + failedStealCas()
+                + " emptyScans=" + emptyScans() + " blocksAllocated=" + blocksAllocated()
+                + " blocksReclaimed=" + blocksReclaimed() + " blocksRecycled=" + blocksRecycled()
+                + " blocks=" + blocks() + " peakBlocks=" + peakBlocks();
+    }
+}
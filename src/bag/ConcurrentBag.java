@@ -1,292 +1,492 @@
 package bag;
 
-import org.apache.log4j.Logger;
-
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicStampedReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by Andrew on 3/26/2017.
  */
-public class ConcurrentBag<T> implements Bag {
-    final static Logger logger = Logger.getLogger(ConcurrentBag.class);
+public class ConcurrentBag<T> extends AbstractConcurrentBag<ConcurrentBag.Block<T>, ConcurrentBag<T>.ThreadMetaData>
+        implements Bag, Iterable<T> {
+
+    /**
+     * A block of items in a thread's list, null slots are empty.
+     *
+     * Only the owner of the list writes items, always into empty slots,
+     * so it publishes them with a release store instead of a volatile
+     * one.  Reads acquire, taking an item always goes through a CAS.
+     */
+    public static class Block<T> implements ListBlock<Block<T>> {
+        private static final VarHandle ITEMS = MethodHandles.arrayElementVarHandle(Object[].class);
 
-    public static class NotRegisteredException extends Exception {
-        public NotRegisteredException(Long threadId) {
-            super(threadId + " is not a registered thread");
+        private final Object[] items;
+        final AtomicStampedReference<Block<T>> next;
+
+        Block(int size, Block<T> next) {
+            this.items = new Object[size];
+            this.next = new AtomicStampedReference<>(next, 0);
         }
-    }
 
-    public static class CannotStealException extends Exception {
-        public CannotStealException(String msg) {
-            super(msg);
+        public T get(int i) {
+            return (T) ITEMS.getAcquire(items, i);
         }
-    }
-    public class ThreadMetaData {
-        public AtomicReferenceArray<T> curBlock;
 
-        public int indexInBlock;
-        public int indexInList;
-        public int indexInBag;
-        public int stealFromBagIndex;
-        public int stealFromListIndex;
-        public int stealFromBlockIndex;
-        public boolean isStealInit = false;
+        /**
+         * Publish an item in an empty slot, owner only
+         */
+        void set(int i, T item) {
+            ITEMS.setRelease(items, i, item);
+        }
 
-        public ThreadMetaData(int indexInBag) {
-            this.indexInBag = indexInBag;
+        boolean compareAndSet(int i, T expect, T update) {
+            return ITEMS.compareAndSet(items, i, expect, update);
         }
-    }
 
-    private static final int blockSize = 1024;
+        @Override
+        public int length() {
+            return items.length;
+        }
 
-    //  Map the Thread.currentThread.getId to index in the bagArrayList
-    //  Assume that additions to this DS are mutually exclusive
-    //  Assume that modifications cannot be made
-    private HashMap<Long, Integer> threadToIndexMap;
-    private Lock registeredThreadLock;
-    private ThreadLocal<ThreadMetaData> localMetadata = new ThreadLocal<>();
+        @Override
+        public int itemCount() {
+            int count = 0;
+            for(int i = 0; i < items.length; i++) {
+                if(get(i) != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
 
-    private LinkedList<ArrayList<AtomicReferenceArray<T>>> bagArrayList;
+        @Override
+        public boolean holdsItem(int i) {
+            return get(i) != null;
+        }
 
-    //  Assume mutual exclusion
-    private Integer nThreads;
+        @Override
+        public boolean moveTo(int i, Block<T> to, int j) {
+            T item = get(i);
+            if(item != null && compareAndSet(i, item, null)) {
+                to.set(j, item);
+                return true;
+            }
+            return false;
+        }
 
-    public ConcurrentBag() {
-        threadToIndexMap = new HashMap<>();
-        registeredThreadLock = new ReentrantLock();
-        bagArrayList = new LinkedList<>();
+        @Override
+        public AtomicStampedReference<Block<T>> next() {
+            return next;
+        }
 
-        nThreads = 0;
+        /**
+         * @return the next older block in the list, ignoring deletion marks
+         */
+        public Block<T> getNext() {
+            return next.getReference();
+        }
     }
 
-    @Override
-    public void add(Object item) throws NotRegisteredException {
-        if(!isRegistered()) {
-            throw new NotRegisteredException(Thread.currentThread().getId());
+    /**
+     * Walks the lists of the bag without taking anything out.  Splits
+     * hand off whole lists, and within a list all blocks but the one
+     * being walked.
+     */
+    private static class BagSpliterator<T> implements Spliterator<T> {
+        private final List<Block<T>> heads;
+        private int nextList;
+        private int endList;
+
+        //  Block being walked, and whether to carry on into older blocks
+        //  of its list when done with it
+        private Block<T> block;
+        private int index;
+        private boolean wholeList;
+
+        private long estimate;
+
+        BagSpliterator(List<Block<T>> heads, int nextList, int endList, long estimate) {
+            this.heads = heads;
+            this.nextList = nextList;
+            this.endList = endList;
+            this.estimate = estimate;
         }
 
-        ThreadMetaData md = localMetadata.get();
-        ArrayList<AtomicReferenceArray<T>> subBag = bagArrayList.get(md.indexInBag);
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while(true) {
+                if(block != null) {
+                    while(index < block.length()) {
+                        T item = block.get(index++);
+                        if(item != null) {
+                            action.accept(item);
+                            return true;
+                        }
+                    }
+                    block = wholeList ? block.getNext() : null;
+                    index = 0;
+                } else if(nextList < endList) {
+                    block = heads.get(nextList++);
+                    index = 0;
+                    wholeList = true;
+                } else {
+                    return false;
+                }
+            }
+        }
 
-        //  Get the next block
-        if(md.curBlock == null || md.indexInBlock == blockSize) {
-            if(md.indexInList < subBag.size() - 1) {
-                //  Another block exists in the list, just increment to it
-                md.curBlock = subBag.get(md.indexInList++);
-                md.indexInBlock = 0;
+        @Override
+        public Spliterator<T> trySplit() {
+            BagSpliterator<T> split;
+            if(endList - nextList >= (block == null ? 2 : 1)) {
+                //  Hand off half of the lists not started yet
+                int middle = (nextList + endList) >>> 1;
+                split = new BagSpliterator<>(heads, middle, endList, estimate >>> 1);
+                endList = middle;
             } else {
-                //  No next block, allocate a new one
-                AtomicReferenceArray<T> newBlock = new AtomicReferenceArray<>(blockSize);
-
-                md.curBlock = newBlock;
-                subBag.add(newBlock);
+                if(block == null && nextList < endList) {
+                    block = heads.get(nextList++);
+                    index = 0;
+                    wholeList = true;
+                }
+                if(block == null || !wholeList || block.getNext() == null) {
+                    return null;
+                }
 
-                md.indexInBlock = 0;
-                md.indexInList = subBag.size() - 1;
+                //  Hand off the older blocks of the list being walked
+                split = new BagSpliterator<>(heads, 0, 0, estimate >>> 1);
+                split.block = block.getNext();
+                split.wholeList = true;
+                wholeList = false;
             }
+
+            estimate -= split.estimate;
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
         }
 
-        //  Insert the item
-        md.curBlock.set(md.indexInBlock++, (T) item);
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.NONNULL;
+        }
     }
 
-    @Override
-    public T remove() throws NotRegisteredException, CannotStealException {
-        if(!isRegistered()) {
-            throw new NotRegisteredException(Thread.currentThread().getId());
+    public class ThreadMetaData extends ListCursor<Block<T>> implements BagHandle<T> {
+        //  The item takeSlot took, until handOut
+        private T held;
+
+        public ThreadMetaData(int indexInBag) {
+            super(indexInBag);
         }
 
-        ThreadMetaData md = localMetadata.get();
-        ArrayList<AtomicReferenceArray<T>> subBag = bagArrayList.get(md.indexInBag);
-        
-        while (0 != 1) {
-            // no more items to remove in this block, so attempt to
-            // remove from an earlier block if it exists
-            if (md.indexInBlock <= 0) {
-                // first block in the list, so there's nothing else to remove
-                if (md.indexInList == 0) {
-                    return steal();
-                } else {
-                    md.curBlock = subBag.get(--md.indexInList);
-                    md.indexInBlock = blockSize;
-                }
+        @Override
+        boolean takeSlot(Block<T> block, int i) {
+            T item = block.get(i);
+            if(item != null && block.compareAndSet(i, item, null)) {
+                held = item;
+                return true;
             }
+            return false;
+        }
 
-            T item = md.curBlock.get(--md.indexInBlock);
-            if(item != null) {
-                if(md.curBlock.compareAndSet(md.indexInBlock, item, null)) {
-                    return item;
-                }
-            }
+        /**
+         * @return the item held, which the cursor lets go of
+         */
+        T handOut() {
+            T item = held;
+            held = null;
+            return item;
         }
-    }
 
-    private T steal() throws CannotStealException {
-        ThreadMetaData md = localMetadata.get();
+        @Override
+        public void add(T item) {
+            ConcurrentBag.this.add(this, item);
+        }
 
-        //  Steal
-        while(true) {
-            //  Raises exception when only one thread, or all baglists are empty
-            //  This does not detect when all nodes are null, will continually re-check
-            T item = nextStealItem();
+        @Override
+        public T remove() {
+            return ConcurrentBag.this.remove(this);
+        }
 
-            if(item != null) {
-                AtomicReferenceArray<T> stealBlock = bagArrayList.get(md.stealFromBagIndex)
-                                                                 .get(md.stealFromListIndex);
+        @Override
+        public void addAll(Collection<? extends T> items) {
+            ConcurrentBag.this.addAll(this, new ArrayList<T>(items));
+        }
 
-                if (stealBlock.compareAndSet(md.stealFromBlockIndex-1, item, null)) {
-                    return item;
-                }
-            }
+        @Override
+        public int drainTo(Consumer<? super T> sink, int max) {
+            return ConcurrentBag.this.drainTo(this, sink, max);
+        }
 
-            md.stealFromBlockIndex++;
+        @Override
+        public T take() throws InterruptedException {
+            return awaitSlot(this, false, 0L) ? handOut() : null;
         }
 
+        @Override
+        public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return awaitSlot(this, true, unit.toNanos(timeout)) ? handOut() : null;
+        }
     }
 
-    private AtomicReferenceArray<T> nextStealBlock() throws CannotStealException {
-        ThreadMetaData md = localMetadata.get();
-
-        //  Find the next list to steal from.
-        //  We need to find a non-empty list,
-        // cannot guarantee that the next list has a block
-        boolean found = false;
-        while(!found) {
-            for(int i=1; i < nThreads; i++) {
-                if(!bagArrayList.get((md.stealFromBagIndex + i) % nThreads).isEmpty()) {
-                    found = true;
-                    md.stealFromListIndex = 0;
-                    md.stealFromBagIndex = (md.stealFromBagIndex + i) % nThreads;
-                    break;
-                }
-            }
+    public ConcurrentBag() {
+        this(new ConcurrentBagBuilder());
+    }
+
+    ConcurrentBag(ConcurrentBagBuilder options) {
+        super(options);
+    }
+
+    /**
+     * @return a builder for a bag with other than the default options
+     */
+    public static ConcurrentBagBuilder builder() {
+        return new ConcurrentBagBuilder();
+    }
+
+    @Override
+    Block<T> newBlock(int size, Block<T> next) {
+        return new Block<>(size, next);
+    }
+
+    @Override
+    ThreadMetaData newMetaData(int indexInBag) {
+        return new ThreadMetaData(indexInBag);
+    }
+
+    /**
+     * Add an item, registering the calling thread on first use
+     */
+    @Override
+    public void add(Object item) {
+        add(localMetadataOrRegister(), (T) item);
+    }
+
+    private void add(ThreadMetaData md, T item) {
+        //  Insert the item, then tell stealers and waiters
+        addLocal(md, item);
+        published(md, 1);
+    }
+
+    /**
+     * Put item in our list without telling anyone, the caller does
+     */
+    private void addLocal(ThreadMetaData md, T item) {
+        if(md.curBlock == null || md.indexInBlock == md.curBlock.length()) {
+            pushBlock(md);
         }
+        md.curBlock.set(md.indexInBlock++, item);
+    }
 
-        return bagArrayList.get(md.stealFromBagIndex).get(md.stealFromListIndex);
+    /**
+     * Add all items, registering the calling thread on first use
+     */
+    public void addAll(T[] items) {
+        addAll(localMetadataOrRegister(), Arrays.asList(items));
     }
 
-    private T nextStealItem() throws CannotStealException {
-        ThreadMetaData md = localMetadata.get();
-        AtomicReferenceArray<T> stealBlock = null;
-
-        //  This is our first attempt to steal, we try to steal from
-        //  the next list, if we are the only thread, throw exception
-        if(!md.isStealInit) {
-            int nThreads = getNThreads();
-            if(nThreads <= 1)
-                throw new CannotStealException("Cannot steal, only one thread");
-
-            //  Start at our own index, nextStealBlock will look starting at next slot
-            md.stealFromBagIndex = md.indexInBag;
-
-            md.stealFromListIndex = 0;
-            md.stealFromBlockIndex = 0;
-
-            stealBlock = nextStealBlock();
-            md.isStealInit = true;
-        } else {
-            //  End of block
-            if(md.stealFromBlockIndex >= blockSize) {
-                //  End of list
-                if(md.stealFromListIndex >= bagArrayList.get(md.stealFromBagIndex).size()-1) {
-                    stealBlock = nextStealBlock();
-                } else {
-                    stealBlock = bagArrayList.get(md.stealFromBagIndex).get(++md.stealFromListIndex);
-                }
+    /**
+     * Add all items, registering the calling thread on first use
+     */
+    public void addAll(Collection<? extends T> items) {
+        addAll(localMetadataOrRegister(), new ArrayList<T>(items));
+    }
 
-                md.stealFromBlockIndex = 0;
-            } else {
-                stealBlock = bagArrayList.get(md.stealFromBagIndex).get(md.stealFromListIndex);
+    /**
+     * Fill our list a block at a time.  Stealers and waiters are told
+     * once per batch instead of once per item
+     */
+    private void addAll(ThreadMetaData md, List<? extends T> items) {
+        int count = items.size();
+        int next = 0;
+        while(next < count) {
+            if(md.curBlock == null || md.indexInBlock == md.curBlock.length()) {
+                pushBlock(md);
             }
+
+            Block<T> block = md.curBlock;
+            int index = md.indexInBlock;
+            int end = Math.min(block.length(), index + count - next);
+            while(index < end) {
+                block.set(index++, items.get(next++));
+            }
+            md.indexInBlock = index;
         }
 
-        T item = stealBlock.get(md.stealFromBlockIndex++);
-        return item;
+        if(count > 0) {
+            published(md, count);
+        }
+    }
+
+    /**
+     * Remove an item, registering the calling thread on first use
+     *
+     * @return the item, or null when the bag is empty
+     */
+    @Override
+    public T remove() {
+        return remove(localMetadataOrRegister());
+    }
+
+    private T remove(ThreadMetaData md) {
+        return removeSlot(md) ? md.handOut() : null;
     }
 
-    /*
-    private void deleteBlock(){
+    /**
+     * Remove one occurrence of item, wherever it is.  Walks the lists
+     * until it finds it, so unlike remove() it costs time in the number
+     * of slots, and it does not register the calling thread.
+     *
+     * @return true when an item equal to item was found and removed
+     */
+    public boolean remove(Object item) {
+        if(item == null) {
+            return false;
+        }
 
-        if(stealPrev != null){
-            if (stealPrev.next.compareAndSet(stealBlock, stealBlock + mark2)){
-                stealBlock.next(mark1) // set mark1 on stealBlock.next using CAS
-                if (stealBlock.next.mark2) { // if stealBlock.next has mark2
-                    stealBlock.next.next(mark1) // set mark on stealBlock.next.next using  CAS
+        for(Block<T> head : listHeads()) {
+            for(Block<T> block = head; block != null; block = block.getNext()) {
+                for(int i = 0; i < block.length(); i++) {
+                    T found = block.get(i);
+                    if(item.equals(found) && block.compareAndSet(i, found, null)) {
+                        removedUnregistered(1);
+                        return true;
+                    }
                 }
-                while(!(stealPrev == null || stealPrev.next.compareAndSet(stealBlock + mark2, stealBlock - mark1))){
-                    if (stealPrev.next is not referencing stealBlock){
-                        UpdateStealPrev();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take out every item filter accepts in one walk of the lists, each
+     * from the slot it was found in.  Like remove(Object) it does not
+     * register the calling thread.
+     *
+     * @return the items taken out
+     */
+    List<T> removeMatching(Predicate<? super T> filter) {
+        List<T> removed = new ArrayList<>();
+        for(Block<T> head : listHeads()) {
+            for(Block<T> block = head; block != null; block = block.getNext()) {
+                for(int i = 0; i < block.length(); i++) {
+                    T item = block.get(i);
+                    if(item != null && filter.test(item) && block.compareAndSet(i, item, null)) {
+                        removed.add(item);
                     }
                 }
-                stealBlock = nextStealBlock(); //next block in linked list or next list
             }
-        } else {
-            stealPrev = stealBlock;
-            stealBlock = nextStealBlock();
         }
+        removedUnregistered(removed.size());
+        return removed;
+    }
+
+    /**
+     * Remove up to max items and hand them to sink, registering the calling
+     * thread on first use
+     *
+     * @return the number of items removed, less than max when the bag ran
+     *         empty
+     */
+    public int drainTo(Consumer<? super T> sink, int max) {
+        return drainTo(localMetadataOrRegister(), sink, max);
+    }
 
+    private int drainTo(ThreadMetaData md, Consumer<? super T> sink, int max) {
+        return drainSlots(md, max, cursor -> sink.accept(cursor.handOut()));
     }
-    */
 
     /**
-     * @return true when the thread is already registered
+     * Remove an item, waiting for one to be added while the bag is empty
      */
-    public boolean isRegistered() {
-        Long threadId = Thread.currentThread().getId();
-        return threadToIndexMap.containsKey(threadId);
+    public T take() throws InterruptedException {
+        ThreadMetaData md = localMetadataOrRegister();
+        return awaitSlot(md, false, 0L) ? md.handOut() : null;
     }
 
     /**
-     * Register a new thread with this Bag.  This method must be
-     * called for any thread that uses this DS.  Failure to call
-     * this method before add/removes will result in exceptions.
-     *
-     * Once registered, this method allocates a new list for this
-     * thread.
+     * Remove an item, waiting up to timeout for one to be added while the
+     * bag is empty
      *
-     * @return true when the thread is successfully registered
+     * @return the item, or null when the bag stayed empty until timeout
      */
-    public boolean registerThread() {
-        try {
-            Long threadId = Thread.currentThread().getId();
-            registeredThreadLock.lock();
-
-            if(threadToIndexMap.containsKey(threadId)) {
-                logger.error("Cannot register thread " + threadId + " thread is already registered");
-                return false;
-            } else {
-                threadToIndexMap.put(threadId, nThreads++);
-                bagArrayList.add(new ArrayList<>());
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        ThreadMetaData md = localMetadataOrRegister();
+        return awaitSlot(md, true, unit.toNanos(timeout)) ? md.handOut() : null;
+    }
+
+    /**
+     * Remove an item, or park once until an add or wakeWaiter wakes us
+     * up, for pools whose borrowers also wait for room to create an item.
+     * Unlike poll it returns null after a wakeup without an item, and it
+     * does not park when ready says there is something else to try.
+     */
+    T pollOnce(boolean timed, long nanos, BooleanSupplier ready) {
+        ThreadMetaData md = localMetadataOrRegister();
+        return awaitSlotOnce(md, timed, nanos, ready) ? md.handOut() : null;
+    }
 
-                //  Create the local metadata for this thread
-                ThreadMetaData md = new ThreadMetaData(nThreads-1);
-                localMetadata.set(md);
+    /**
+     * A weakly consistent view of the items, like the iterators of the
+     * java.util.concurrent collections: it walks the lists as they are,
+     * never fails because of concurrent adds or removes, and sees each
+     * item that stays in place at most once.  Items added after it was
+     * created, removed meanwhile, or moved to another list by adoption
+     * or bulk stealing may or may not be seen.  Nothing is taken out of
+     * the bag, and the iterator does not support remove.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
 
-                return true;
-            }
-        } finally {
-            registeredThreadLock.unlock();
-        }
+    /**
+     * Weakly consistent like iterator, and splits at list and block
+     * boundaries so parallel streams divide the work between threads
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        List<Block<T>> heads = listHeads();
+        return new BagSpliterator<>(heads, 0, heads.size(), size());
+    }
+
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
     }
 
     /**
+     * Register the calling thread, if it is not registered yet, and
+     * return its handle.  Adding and removing through the handle skips
+     * the registration check and thread local lookup of add/remove, but
+     * the handle must only be used by the calling thread.
      *
-     * Get the number of threads that are currently registered.
-     * Use simple lock to guarantee thread-safety and linearizability
-     *
-     * @return
+     * @return the handle of the calling thread
      */
-    private int getNThreads() {
-        try {
-            registeredThreadLock.lock();
-            return threadToIndexMap.size();
-        } finally {
-            registeredThreadLock.unlock();
+    public BagHandle<T> register() {
+        if(!isRegistered()) {
+            registerThread();
         }
+        return localMetadata.get();
     }
 }
@@ -0,0 +1,140 @@
+package bag;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Options of a ConcurrentBag, IntConcurrentBag or LongConcurrentBag.
+ *
+ *     ConcurrentBag<Task> bag = ConcurrentBag.builder()
+ *             .blockSize(64)
+ *             .adaptiveBlockSize(4096)
+ *             .build();
+ */
+public class ConcurrentBagBuilder {
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    int blockSize = DEFAULT_BLOCK_SIZE;
+
+    //  Zero while the block size is fixed
+    int maxBlockSize = 0;
+
+    boolean bulkSteal = false;
+
+    int recycleBlocks = 0;
+
+    StealPolicy stealPolicy = StealPolicy.ROUND_ROBIN;
+
+    ToIntFunction<Thread> stealDomains = null;
+
+    boolean metrics = false;
+
+    /**
+     * Number of items in each block of a thread's list, or in its first
+     * block when the block size is adaptive
+     */
+    public ConcurrentBagBuilder blockSize(int blockSize) {
+        if(blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        if(maxBlockSize != 0 && maxBlockSize < blockSize) {
+            throw new IllegalArgumentException("Block size " + blockSize + " is above maximum block size " + maxBlockSize);
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Let the block size of each thread adapt to how it uses its list.
+     * A thread starts with blocks of blockSize items.  Each time it
+     * fills a block its next one is twice the size, up to maxBlockSize,
+     * and each time it empties one its next one is half the size, down
+     * to blockSize again.  Threads adding in bursts cross block
+     * boundaries less often, threads adding a few items keep small ones.
+     */
+    public ConcurrentBagBuilder adaptiveBlockSize(int maxBlockSize) {
+        if(maxBlockSize < blockSize) {
+            throw new IllegalArgumentException("Maximum block size " + maxBlockSize + " is below block size " + blockSize);
+        }
+        this.maxBlockSize = maxBlockSize;
+        return this;
+    }
+
+    /**
+     * Let a stealer take more than one item at a time.  Besides the item
+     * it returns, it moves up to half of the items left in the victim's
+     * block into its own list, where its next removes find them without
+     * stealing.  Pays off when few threads add and many remove.
+     */
+    public ConcurrentBagBuilder bulkSteal() {
+        this.bulkSteal = true;
+        return this;
+    }
+
+    /**
+     * Let each thread keep up to spares of the head blocks it empties,
+     * and reuse them when it next needs a block instead of allocating
+     * one.  A thread whose adds and removes go back and forth across a
+     * block boundary then stops producing a block of garbage each time.
+     * Blocks stealers empty further down the lists are left to the
+     * garbage collector, as are spares when their thread leaves, and
+     * those of threads gone quiet once releaseIdleSpares is called.  With
+     * 0, the default, no blocks are reused.
+     */
+    public ConcurrentBagBuilder recycleBlocks(int spares) {
+        if(spares < 0) {
+            throw new IllegalArgumentException("Spare blocks must not be negative: " + spares);
+        }
+        this.recycleBlocks = spares;
+        return this;
+    }
+
+    /**
+     * Which list a stealer moves on to when its victim runs dry,
+     * ROUND_ROBIN by default
+     */
+    public ConcurrentBagBuilder stealPolicy(StealPolicy stealPolicy) {
+        if(stealPolicy == null) {
+            throw new IllegalArgumentException("Steal policy must not be null");
+        }
+        this.stealPolicy = stealPolicy;
+        return this;
+    }
+
+    /**
+     * Group threads into steal domains, such as the cores of a socket.
+     * A stealer walks the lists of threads in its own domain before it
+     * crosses to another one.  stealDomainOf gives the domain of each
+     * registering thread; a thread can also name its domain itself, with
+     * registerThread(int).  Without either, all threads are in domain 0.
+     */
+    public ConcurrentBagBuilder stealDomains(ToIntFunction<Thread> stealDomainOf) {
+        if(stealDomainOf == null) {
+            throw new IllegalArgumentException("Steal domain mapping must not be null");
+        }
+        this.stealDomains = stealDomainOf;
+        return this;
+    }
+
+    /**
+     * Have every thread count its local hits, steal attempts, failed
+     * steal CAS, empty scans and block allocations, reclamations and
+     * reuse, see BagMetrics.  Each count is a store to a counter of the thread's
+     * own; without this option adds and removes skip them.
+     */
+    public ConcurrentBagBuilder metrics() {
+        this.metrics = true;
+        return this;
+    }
+
+    public <T> ConcurrentBag<T> build() {
+        return new ConcurrentBag<>(this);
+    }
+
+    public IntConcurrentBag buildInt() {
+        return new IntConcurrentBag(this);
+    }
+
+    public LongConcurrentBag buildLong() {
+        return new LongConcurrentBag(this);
+    }
+}
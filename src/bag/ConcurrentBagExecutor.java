@@ -0,0 +1,205 @@
+package bag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed pool of worker threads sharing a ConcurrentBag of tasks.
+ *
+ * Each worker owns a list of the bag.  A task submitted by a worker goes
+ * into that worker's list, and is run by it newest first; a worker with
+ * an empty list steals from the others, and parks in the bag's take
+ * when there is nothing to steal.  Tasks submitted by other threads go
+ * into the submitting thread's list, for the workers to steal.  Tasks
+ * run in no particular order.
+ *
+ * shutdown lets the workers run every task already submitted before
+ * they exit, without interrupting them.  shutdownNow hands back the
+ * tasks not started and interrupts the workers.
+ */
+public class ConcurrentBagExecutor extends AbstractExecutorService {
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+
+    //  One is added per worker on shutdown: the worker taking it runs
+    //  what is left in the bag and exits
+    private static final Runnable EXIT = () -> { };
+
+    private final ConcurrentBag<Runnable> tasks;
+    private final Thread[] workers;
+
+    //  Guards changes to state
+    private final Lock stateLock = new ReentrantLock();
+    private volatile int state = RUNNING;
+
+    private final AtomicInteger liveWorkers;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    public ConcurrentBagExecutor(int nThreads) {
+        this(nThreads, Executors.defaultThreadFactory());
+    }
+
+    public ConcurrentBagExecutor(int nThreads, ThreadFactory threadFactory) {
+        this(nThreads, threadFactory, new ConcurrentBag<>());
+    }
+
+    /**
+     * @param tasks the bag holding the tasks, configured with
+     *              ConcurrentBag.builder()
+     */
+    public ConcurrentBagExecutor(int nThreads, ThreadFactory threadFactory, ConcurrentBag<Runnable> tasks) {
+        if(nThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + nThreads);
+        }
+        this.tasks = tasks;
+        this.liveWorkers = new AtomicInteger(nThreads);
+
+        workers = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            workers[i] = threadFactory.newThread(this::work);
+        }
+        for(Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if(command == null) {
+            throw new NullPointerException();
+        }
+        if(state != RUNNING) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        tasks.add(command);
+
+        //  Shut down meanwhile: the workers may be gone already, take the
+        //  task back unless one of them got it
+        if(state != RUNNING && tasks.remove(command)) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+    }
+
+    private void work() {
+        tasks.registerThread();
+        try {
+            while(state != STOP) {
+                Runnable task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                if(task == EXIT) {
+                    finishTasks();
+                    break;
+                }
+                run(task);
+            }
+        } finally {
+            tasks.deregisterThread();
+            if(liveWorkers.decrementAndGet() == 0) {
+                terminated.countDown();
+            }
+        }
+    }
+
+    /**
+     * Run the tasks left after shutdown.  Exit signals meant for other
+     * workers are put back once the bag is empty, for them to find.
+     */
+    private void finishTasks() {
+        int exits = 0;
+        Runnable task;
+        while(state != STOP && (task = tasks.remove()) != null) {
+            if(task == EXIT) {
+                exits++;
+            } else {
+                run(task);
+            }
+        }
+        for(int i = 0; i < exits; i++) {
+            tasks.add(EXIT);
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException | Error e) {
+            Thread current = Thread.currentThread();
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        }
+
+        //  Clear an interrupt aimed at the task, unless we are stopping
+        if(state != STOP) {
+            Thread.interrupted();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        stateLock.lock();
+        try {
+            if(state != RUNNING) {
+                return;
+            }
+            state = SHUTDOWN;
+        } finally {
+            stateLock.unlock();
+        }
+
+        for(int i = 0; i < workers.length; i++) {
+            tasks.add(EXIT);
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        stateLock.lock();
+        try {
+            state = STOP;
+        } finally {
+            stateLock.unlock();
+        }
+
+        for(Thread worker : workers) {
+            worker.interrupt();
+        }
+
+        List<Runnable> notStarted = new ArrayList<>();
+        tasks.drainTo(task -> {
+            if(task != EXIT) {
+                notStarted.add(task);
+            }
+        }, Integer.MAX_VALUE);
+        return notStarted;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return state != RUNNING;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+}
@@ -0,0 +1,35 @@
+package bag;
+
+/**
+ * Management interface of a bag registered with registerMBean.  Every
+ * attribute is read from a fresh snapshot, see BagMetrics and size.
+ */
+public interface ConcurrentBagMXBean {
+    int getSize();
+
+    /**
+     * @return lists stealers scan: those of registered threads and those
+     *         not yet taken over from threads that left
+     */
+    int getLists();
+
+    boolean isMetricsEnabled();
+
+    long getLocalHits();
+
+    long getStealAttempts();
+
+    long getFailedStealCas();
+
+    long getEmptyScans();
+
+    long getBlocksAllocated();
+
+    long getBlocksReclaimed();
+
+    long getBlocksRecycled();
+
+    long getBlocks();
+
+    long getPeakBlocks();
+}
@@ -0,0 +1,231 @@
+package bag;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A pool of objects, such as buffers or connections, kept in a
+ * ConcurrentBag.
+ *
+ * A released object goes into the releasing thread's own list, so the
+ * next borrow on that thread gets it back without touching any other
+ * thread's list.  A thread with nothing in its list steals an idle
+ * object from another thread, creates a new one while the pool is
+ * below its maximum size, or waits for one to be released.
+ *
+ *     ConcurrentBagPool<ByteBuffer> pool = new ConcurrentBagPool<>(() -> ByteBuffer.allocate(4096), 64);
+ *     ConcurrentBagPool.Entry<ByteBuffer> entry = pool.borrow();
+ *     try {
+ *         use(entry.get());
+ *     } finally {
+ *         pool.release(entry);
+ *     }
+ *
+ * Objects idle for longer than the idle timeout are destroyed by
+ * evictIdle, which the pool does not run by itself: call it from a
+ * scheduled task.
+ */
+public class ConcurrentBagPool<T> {
+
+    /**
+     * A pooled object, handed out by borrow and given back to release.
+     * The entry is reused for as long as its object is pooled, so a
+     * borrow and release allocate nothing.
+     */
+    public static final class Entry<T> {
+        private final T object;
+
+        //  When the entry was last released, written before it goes into
+        //  the bag, so whoever takes it out sees it
+        long idleSince;
+
+        Entry(T object) {
+            this.object = object;
+        }
+
+        public T get() {
+            return object;
+        }
+    }
+
+    private final ConcurrentBag<Entry<T>> bag = new ConcurrentBag<>();
+    private final Supplier<? extends T> factory;
+    private final Consumer<? super T> destroyer;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+
+    //  Objects created and not destroyed, borrowed or idle
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    //  Whether a borrow could create an object, see awaitEntry
+    private final BooleanSupplier hasRoom;
+
+    /**
+     * A pool that never evicts its objects
+     */
+    public ConcurrentBagPool(Supplier<? extends T> factory, int maxSize) {
+        this(factory, object -> { }, maxSize, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param factory creates an object when none is idle and the pool is
+     *                below maxSize
+     * @param destroyer releases the resources of an evicted object
+     * @param idleTimeout how long an object may stay idle before
+     *                    evictIdle destroys it
+     */
+    public ConcurrentBagPool(Supplier<? extends T> factory, Consumer<? super T> destroyer, int maxSize,
+                             long idleTimeout, TimeUnit unit) {
+        if(maxSize < 1) {
+            throw new IllegalArgumentException("Maximum pool size must be positive: " + maxSize);
+        }
+        if(idleTimeout < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative: " + idleTimeout);
+        }
+        this.factory = factory;
+        this.destroyer = destroyer;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.hasRoom = () -> size.get() < maxSize;
+    }
+
+    /**
+     * Borrow an object, waiting for one to be released while the pool is
+     * at its maximum size and all objects are borrowed
+     */
+    public Entry<T> borrow() throws InterruptedException {
+        return awaitEntry(false, 0L);
+    }
+
+    /**
+     * Borrow an object, waiting up to timeout for one to be released
+     * while the pool is at its maximum size and all objects are borrowed
+     *
+     * @return the entry, or null when none was released until timeout
+     */
+    public Entry<T> borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        return awaitEntry(true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Borrow or create an entry, else wait for a release, or for
+     * evictIdle to make room.
+     *
+     * evictIdle can take the last idle entry just as we look, and lower
+     * size only after we found the pool full.  So it wakes a waiter once
+     * it has, and a waiter looks at size again after it enqueued, before
+     * it parks: either it sees the room, or evictIdle sees it waiting.
+     */
+    private Entry<T> awaitEntry(boolean timed, long nanos) throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + nanos : 0L;
+
+        while(true) {
+            Entry<T> entry = borrowOrCreate();
+            if(entry != null) {
+                return entry;
+            }
+
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if(timed) {
+                nanos = deadline - System.nanoTime();
+                if(nanos <= 0) {
+                    return null;
+                }
+            }
+
+            entry = bag.pollOnce(timed, nanos, hasRoom);
+            if(entry != null) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * @return an idle entry, the one this thread released last if it is
+     *         still there, or a new one; null when the pool is full
+     */
+    private Entry<T> borrowOrCreate() {
+        Entry<T> entry = bag.remove();
+        if(entry != null) {
+            return entry;
+        }
+
+        int current;
+        while((current = size.get()) < maxSize) {
+            if(size.compareAndSet(current, current + 1)) {
+                try {
+                    return new Entry<>(factory.get());
+                } catch (RuntimeException e) {
+                    size.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Give a borrowed entry back.  It goes into the calling thread's own
+     * list, for its next borrow.  An entry must be released once per
+     * borrow, and not used after it was released.
+     */
+    public void release(Entry<T> entry) {
+        entry.idleSince = System.nanoTime();
+        bag.add(entry);
+    }
+
+    /**
+     * Destroy the objects that have been idle for longer than the idle
+     * timeout.  An object borrowed while it is being looked at is left
+     * alone.  An object counts towards the maximum size until it is
+     * destroyed, then a waiting borrow is woken to create one.
+     *
+     * @return the number of objects destroyed
+     */
+    public int evictIdle() {
+        if(idleTimeoutNanos == Long.MAX_VALUE) {
+            return 0;
+        }
+
+        int evicted = 0;
+        long now = System.nanoTime();
+        for(Entry<T> entry : bag.removeMatching(idle -> now - idle.idleSince > idleTimeoutNanos)) {
+            //  Borrowed and released again since we looked
+            if(now - entry.idleSince <= idleTimeoutNanos) {
+                bag.add(entry);
+                continue;
+            }
+
+            try {
+                destroyer.accept(entry.get());
+            } finally {
+                size.decrementAndGet();
+                bag.wakeWaiter();
+            }
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of objects created and not destroyed, borrowed
+     *         or idle
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return about how many objects are idle in the pool, see
+     *         ConcurrentBag.size
+     */
+    public int idle() {
+        return bag.size();
+    }
+}
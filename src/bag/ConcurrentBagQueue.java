@@ -0,0 +1,123 @@
+package bag;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ConcurrentBag behind the BlockingQueue interface, for use as the work
+ * queue of a ThreadPoolExecutor.
+ *
+ *     new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS, new ConcurrentBagQueue<>());
+ *
+ * The queue is unbounded and unordered: a thread gets back the items it
+ * offered newest first, and items of other threads in no particular
+ * order.  Threads are registered with the bag on their first offer or
+ * poll, and their lists are taken over by other threads once they die.
+ *
+ * size is the bag's approximate count.  isEmpty, peek and iteration look
+ * at the items themselves, and are weakly consistent.
+ */
+public class ConcurrentBagQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final ConcurrentBag<E> bag;
+
+    public ConcurrentBagQueue() {
+        this(new ConcurrentBag<>());
+    }
+
+    /**
+     * @param bag the bag holding the items, configured with
+     *            ConcurrentBag.builder()
+     */
+    public ConcurrentBagQueue(ConcurrentBag<E> bag) {
+        this.bag = bag;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if(e == null) {
+            throw new NullPointerException();
+        }
+        bag.add(e);
+        return true;
+    }
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public E poll() {
+        return bag.remove();
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return bag.take();
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return bag.poll(timeout, unit);
+    }
+
+    /**
+     * @return some item in the queue, not necessarily the one poll would
+     *         return next, or null when none was found
+     */
+    @Override
+    public E peek() {
+        Iterator<E> items = bag.iterator();
+        return items.hasNext() ? items.next() : null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    @Override
+    public int size() {
+        return bag.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return bag.remove(o);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if(c == this) {
+            throw new IllegalArgumentException("Cannot drain a queue into itself");
+        }
+        return bag.drainTo(c::add, maxElements);
+    }
+
+    /**
+     * A weakly consistent iterator over the items, see
+     * ConcurrentBag.iterator.  Does not support remove.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return bag.iterator();
+    }
+}
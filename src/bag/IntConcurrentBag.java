@@ -0,0 +1,239 @@
+package bag;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicStampedReference;
+import java.util.function.IntConsumer;
+
+/**
+ * A ConcurrentBag of int values, stored unboxed in the blocks.
+ *
+ * EMPTY is reserved: it cannot be added, and is what remove returns when
+ * the bag is empty.  Slots hold their value with the sign bit flipped,
+ * so the zeroes of a new block are empty slots and EMPTY is the one
+ * value left out.
+ */
+public class IntConcurrentBag extends AbstractConcurrentBag<IntConcurrentBag.Block, IntConcurrentBag.ThreadMetaData> {
+    public static final int EMPTY = Integer.MIN_VALUE;
+
+    /**
+     * A block of values in a thread's list, zero slots are empty.  The
+     * owner publishes values with release stores, see ConcurrentBag.Block
+     */
+    public static class Block implements ListBlock<Block> {
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+        private final int[] slots;
+        final AtomicStampedReference<Block> next;
+
+        Block(int size, Block next) {
+            this.slots = new int[size];
+            this.next = new AtomicStampedReference<>(next, 0);
+        }
+
+        int get(int i) {
+            return (int) SLOTS.getAcquire(slots, i);
+        }
+
+        void set(int i, int slot) {
+            SLOTS.setRelease(slots, i, slot);
+        }
+
+        boolean compareAndSet(int i, int expect, int update) {
+            return SLOTS.compareAndSet(slots, i, expect, update);
+        }
+
+        @Override
+        public int length() {
+            return slots.length;
+        }
+
+        @Override
+        public int itemCount() {
+            int count = 0;
+            for(int i = 0; i < slots.length; i++) {
+                if(get(i) != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public boolean holdsItem(int i) {
+            return get(i) != 0;
+        }
+
+        @Override
+        public boolean moveTo(int i, Block to, int j) {
+            int slot = get(i);
+            if(slot != 0 && compareAndSet(i, slot, 0)) {
+                to.set(j, slot);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public AtomicStampedReference<Block> next() {
+            return next;
+        }
+
+        /**
+         * @return the next older block in the list, ignoring deletion marks
+         */
+        public Block getNext() {
+            return next.getReference();
+        }
+    }
+
+    public static class ThreadMetaData extends ListCursor<Block> {
+        //  The value takeSlot took last
+        private int held;
+
+        public ThreadMetaData(int indexInBag) {
+            super(indexInBag);
+        }
+
+        @Override
+        boolean takeSlot(Block block, int i) {
+            int slot = block.get(i);
+            if(slot != 0 && block.compareAndSet(i, slot, 0)) {
+                held = slot ^ EMPTY;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public IntConcurrentBag() {
+        this(new ConcurrentBagBuilder());
+    }
+
+    IntConcurrentBag(ConcurrentBagBuilder options) {
+        super(options);
+    }
+
+    /**
+     * @return a builder for a bag with other than the default options
+     */
+    public static ConcurrentBagBuilder builder() {
+        return new ConcurrentBagBuilder();
+    }
+
+    @Override
+    Block newBlock(int size, Block next) {
+        return new Block(size, next);
+    }
+
+    @Override
+    ThreadMetaData newMetaData(int indexInBag) {
+        return new ThreadMetaData(indexInBag);
+    }
+
+    /**
+     * Add a value, registering the calling thread on first use
+     *
+     * @throws IllegalArgumentException when value is EMPTY
+     */
+    public void add(int value) {
+        if(value == EMPTY) {
+            throw new IllegalArgumentException("Cannot add the EMPTY value");
+        }
+        add(localMetadataOrRegister(), value ^ EMPTY);
+    }
+
+    private void add(ThreadMetaData md, int slot) {
+        //  Insert the value, then tell stealers and waiters
+        addLocal(md, slot);
+        published(md, 1);
+    }
+
+    /**
+     * Put slot in our list without telling anyone, the caller does
+     */
+    private void addLocal(ThreadMetaData md, int slot) {
+        if(md.curBlock == null || md.indexInBlock == md.curBlock.length()) {
+            pushBlock(md);
+        }
+        md.curBlock.set(md.indexInBlock++, slot);
+    }
+
+    /**
+     * Add all values, registering the calling thread on first use
+     *
+     * @throws IllegalArgumentException when a value is EMPTY, none of
+     *         the values are added then
+     */
+    public void addAll(int[] values) {
+        for(int value : values) {
+            if(value == EMPTY) {
+                throw new IllegalArgumentException("Cannot add the EMPTY value");
+            }
+        }
+
+        ThreadMetaData md = localMetadataOrRegister();
+        int next = 0;
+        while(next < values.length) {
+            if(md.curBlock == null || md.indexInBlock == md.curBlock.length()) {
+                pushBlock(md);
+            }
+
+            Block block = md.curBlock;
+            int index = md.indexInBlock;
+            int end = Math.min(block.length(), index + values.length - next);
+            while(index < end) {
+                block.set(index++, values[next++] ^ EMPTY);
+            }
+            md.indexInBlock = index;
+        }
+
+        if(values.length > 0) {
+            published(md, values.length);
+        }
+    }
+
+    /**
+     * Remove a value, registering the calling thread on first use
+     *
+     * @return the value, or EMPTY when the bag is empty
+     */
+    public int remove() {
+        return remove(localMetadataOrRegister());
+    }
+
+    private int remove(ThreadMetaData md) {
+        return removeSlot(md) ? md.held : EMPTY;
+    }
+
+    /**
+     * Remove up to max values and hand them to sink, registering the
+     * calling thread on first use
+     *
+     * @return the number of values removed, less than max when the bag
+     *         ran empty
+     */
+    public int drainTo(IntConsumer sink, int max) {
+        return drainSlots(localMetadataOrRegister(), max, md -> sink.accept(md.held));
+    }
+
+    /**
+     * Remove a value, waiting for one to be added while the bag is empty
+     */
+    public int take() throws InterruptedException {
+        ThreadMetaData md = localMetadataOrRegister();
+        return awaitSlot(md, false, 0L) ? md.held : EMPTY;
+    }
+
+    /**
+     * Remove a value, waiting up to timeout for one to be added while the
+     * bag is empty
+     *
+     * @return the value, or EMPTY when the bag stayed empty until timeout
+     */
+    public int poll(long timeout, TimeUnit unit) throws InterruptedException {
+        ThreadMetaData md = localMetadataOrRegister();
+        return awaitSlot(md, true, unit.toNanos(timeout)) ? md.held : EMPTY;
+    }
+}
@@ -2,11 +2,13 @@ package bag;
 
 import org.apache.log4j.Logger;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -22,15 +24,33 @@ public class LeakyConcurrentBag<T> implements Bag {
         }
     }
 
+    /**
+     * A block of items, null slots are empty.  Only the owner of the list
+     * writes items, so it publishes them with a release store
+     */
     public static class Block<T> {
-        AtomicReferenceArray<T> blockData;
+        private static final VarHandle ITEMS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+        private final Object[] blockData;
         AtomicBoolean deleted;
 
-        public Block() {
-            this.blockData = new AtomicReferenceArray<T>(blockSize);
+        public Block(int blockSize) {
+            this.blockData = new Object[blockSize];
             this.deleted = new AtomicBoolean();
             this.deleted.set(false);
         }
+
+        T get(int i) {
+            return (T) ITEMS.getAcquire(blockData, i);
+        }
+
+        void set(int i, T item) {
+            ITEMS.setRelease(blockData, i, item);
+        }
+
+        boolean compareAndSet(int i, T expect, T update) {
+            return ITEMS.compareAndSet(blockData, i, expect, update);
+        }
     }
     public static class CannotStealException extends Exception {
         public CannotStealException(String msg) {
@@ -38,7 +58,7 @@ public class LeakyConcurrentBag<T> implements Bag {
         }
     }
     public class ThreadMetaData {
-        public AtomicReferenceArray<T> curBlock;
+        public Block<T> curBlock;
 
         public int indexInBlock;
         public int indexInList;
@@ -46,33 +66,77 @@ public class LeakyConcurrentBag<T> implements Bag {
         public int stealFromBagIndex;
         public int stealFromListIndex;
         public int stealFromBlockIndex;
+        public Block<T> stealBlock;
         public boolean isStealInit = false;
 
+        //  Operations since the list was last trimmed, and the highest
+        //  indexInList reached since
+        int sinceTrim;
+        int peakInList;
+
         public ThreadMetaData(int indexInBag) {
             this.indexInBag = indexInBag;
         }
     }
 
-    private static final int blockSize = 1024;
+    private final int blockSize;
 
-    //  Map the Thread.currentThread.getId to index in the bagArrayList
+    //  Owner operations between trims of its list, 0 when lists are
+    //  never trimmed
+    private final int trimInterval;
+
+    //  Blocks in all lists, and the most there ever were
+    private final AtomicInteger blocks = new AtomicInteger();
+    private final AtomicInteger peakBlocks = new AtomicInteger();
+
+    //  Items added less items removed, see size
+    private final LongAdder size = new LongAdder();
+
+    //  Map the Thread.currentThread.getId to index in subBags
     //  Assume that additions to this DS are mutually exclusive
     //  Assume that modifications cannot be made
     private HashMap<Long, Integer> threadToIndexMap;
     private Lock registeredThreadLock;
     private ThreadLocal<ThreadMetaData> localMetadata = new ThreadLocal<>();
 
-    private LinkedList<ArrayList<Block<T>>> bagArrayList;
-
-    //  Assume mutual exclusion
-    private Integer nThreads;
+    //  One list per registered thread, indexed by ThreadMetaData.indexInBag
+    private BagDirectory<ArrayList<Block<T>>> subBags;
 
     public LeakyConcurrentBag() {
+        this(ConcurrentBagBuilder.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize number of items in each block of a thread's list
+     */
+    public LeakyConcurrentBag(int blockSize) {
+        this(blockSize, 0);
+    }
+
+    /**
+     * A bag whose lists shrink again after a burst.  Every trimInterval
+     * adds and removes, a thread drops the empty blocks at the end of
+     * its list that it did not reach during the interval, keeping one
+     * past its current block so going back and forth across a block
+     * boundary does not allocate.  Stealers still in a dropped block
+     * find it empty and move on.
+     *
+     * @param blockSize number of items in each block of a thread's list
+     * @param trimInterval operations of a thread between trims of its
+     *                     list, 0 to keep every block for good
+     */
+    public LeakyConcurrentBag(int blockSize, int trimInterval) {
+        if(blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        if(trimInterval < 0) {
+            throw new IllegalArgumentException("Trim interval must not be negative: " + trimInterval);
+        }
+        this.blockSize = blockSize;
+        this.trimInterval = trimInterval;
         threadToIndexMap = new HashMap<>();
         registeredThreadLock = new ReentrantLock();
-        bagArrayList = new LinkedList<>();
-
-        nThreads = 0;
+        subBags = new BagDirectory<>();
     }
 
     @Override
@@ -82,34 +146,42 @@ public class LeakyConcurrentBag<T> implements Bag {
         }
 
         ThreadMetaData md = localMetadata.get();
-        ArrayList<Block<T>> subBag = bagArrayList.get(md.indexInBag);
+        ArrayList<Block<T>> subBag = subBags.get(md.indexInBag);
 
         //  Get the next block
         if(md.curBlock == null || md.indexInBlock == blockSize) {
             if(md.indexInList < subBag.size() - 1) {
                 //  Another block exists in the list, just increment to it
-                Block<T> block = subBag.get(md.indexInList++);
-                md.curBlock = block.blockData;
+                Block<T> block = subBag.get(++md.indexInList);
+                if(block == null) {
+                    //  A trim dropped it, put a new one in its slot
+                    block = newBlock();
+                    subBag.set(md.indexInList, block);
+                }
+                md.curBlock = block;
                 md.indexInBlock = 0;
 
                 //  If this existing block was previously deleted, restore it
                 block.deleted.set(false);
             } else {
                 //  No next block, allocate a new one
-                Block<T> newBlock = new Block<T>();
+                Block<T> newBlock = newBlock();
 
-                md.curBlock = newBlock.blockData;
+                md.curBlock = newBlock;
                 subBag.add(newBlock);
 
                 md.indexInBlock = 0;
                 md.indexInList = subBag.size() - 1;
             }
+            md.peakInList = Math.max(md.peakInList, md.indexInList);
         }
 
         subBag.get(md.indexInList).deleted.set(false);
 
         //  Insert the item
         md.curBlock.set(md.indexInBlock++, (T) item);
+        size.increment();
+        countOperation(md, subBag);
     }
 
     @Override
@@ -119,16 +191,19 @@ public class LeakyConcurrentBag<T> implements Bag {
         }
 
         ThreadMetaData md = localMetadata.get();
-        ArrayList<Block<T>> subBag = bagArrayList.get(md.indexInBag);
-        
+        ArrayList<Block<T>> subBag = subBags.get(md.indexInBag);
+        countOperation(md, subBag);
+
         while (0 != 1) {
             // no more items to remove in this block, so attempt to remove from an earlier block if it exists
             if (md.indexInBlock <= 0) {
                 // first block in the list, so there's nothing else to remove
                 if (md.indexInList == 0) {
-                    return steal();
+                    T item = steal();
+                    size.decrement();
+                    return item;
                 } else {
-                    md.curBlock = subBag.get(--md.indexInList).blockData;
+                    md.curBlock = subBag.get(--md.indexInList);
                     md.indexInBlock = blockSize;
 
                     //  Delete the previous block
@@ -139,12 +214,46 @@ public class LeakyConcurrentBag<T> implements Bag {
             T item = md.curBlock.get(--md.indexInBlock);
             if(item != null) {
                 if(md.curBlock.compareAndSet(md.indexInBlock, item, null)) {
+                    size.decrement();
                     return item;
                 }
             }
         }
     }
 
+    private Block<T> newBlock() {
+        int count = blocks.incrementAndGet();
+        peakBlocks.accumulateAndGet(count, Math::max);
+        return new Block<T>(blockSize);
+    }
+
+    private void countOperation(ThreadMetaData md, ArrayList<Block<T>> subBag) {
+        if(trimInterval > 0 && ++md.sinceTrim >= trimInterval) {
+            trim(md, subBag);
+        }
+    }
+
+    /**
+     * Drop the blocks past the one after the highest our list reached
+     * since the last trim.  The blocks past our current one are empty:
+     * we walked every slot of them on our way down, and only we write.
+     *
+     * The list keeps its length and the dropped slots hold null, so an
+     * index a stealer checked against the length stays valid.  Add
+     * fills the slots again in order, so the blocks left are a prefix.
+     */
+    private void trim(ThreadMetaData md, ArrayList<Block<T>> subBag) {
+        int dropped = 0;
+        for(int i = Math.max(md.peakInList, md.indexInList) + 2; i < subBag.size() && subBag.get(i) != null; i++) {
+            subBag.set(i, null);
+            dropped++;
+        }
+        blocks.addAndGet(-dropped);
+
+        md.sinceTrim = 0;
+        md.peakInList = md.indexInList;
+    }
+
     private T steal() throws CannotStealException {
         ThreadMetaData md = localMetadata.get();
 
@@ -155,9 +264,7 @@ public class LeakyConcurrentBag<T> implements Bag {
             T item = nextStealItem();
 
             if(item != null) {
-                Block<T> stealBlock = bagArrayList.get(md.stealFromBagIndex).get(md.stealFromListIndex);
-
-                if (stealBlock.blockData.compareAndSet(md.stealFromBlockIndex-1, item, null)) {
+                if (md.stealBlock.compareAndSet(md.stealFromBlockIndex-1, item, null)) {
                     return item;
                 }
             }
@@ -167,32 +274,28 @@ public class LeakyConcurrentBag<T> implements Bag {
 
     }
 
-    private AtomicReferenceArray<T> nextStealBlock() throws CannotStealException {
+    private Block<T> nextStealBlock() throws CannotStealException {
         ThreadMetaData md = localMetadata.get();
 
         //  If we are not at the end of the list, try and find a block in the current list
-        if(md.stealFromListIndex < bagArrayList.get(md.stealFromBagIndex).size()-1) {
-            while(md.stealFromListIndex < bagArrayList.get(md.stealFromBagIndex).size()-1) {
-                Block<T> block = bagArrayList.get(md.stealFromBagIndex).get(++md.stealFromListIndex);
-                if(!block.deleted.get()) return block.blockData;
-            }
-        }
+        Block<T> block = nextLiveBlock(md, subBags.get(md.stealFromBagIndex));
+        if(block != null) return block;
 
         //  Find the next list to steal from.
         //  We need to find a non-empty list,
         // cannot guarantee that the next list has a block
         boolean found = false;
         while(!found) {
+            int nThreads = subBags.size();
             for(int i=1; i < nThreads; i++) {
-                if(!bagArrayList.get((md.stealFromBagIndex + i) % nThreads).isEmpty()) {
+                ArrayList<Block<T>> subBag = subBags.get((md.stealFromBagIndex + i) % nThreads);
+                if(subBag != null && !subBag.isEmpty()) {
                     md.stealFromListIndex = 0;
                     md.stealFromBagIndex = (md.stealFromBagIndex + i) % nThreads;
 
                     //  Return the first block that is not marked deleted in the list
-                    while(md.stealFromListIndex < bagArrayList.get(md.stealFromBagIndex).size()-1) {
-                        Block<T> block = bagArrayList.get(md.stealFromBagIndex).get(++md.stealFromListIndex);
-                        if(!block.deleted.get()) return block.blockData;
-                    }
+                    block = nextLiveBlock(md, subBag);
+                    if(block != null) return block;
                 }
             }
         }
@@ -200,9 +303,24 @@ public class LeakyConcurrentBag<T> implements Bag {
         return null;
     }
 
+    /**
+     * Advance md.stealFromListIndex to the next block of list that is
+     * neither deleted nor dropped by a trim.  Lists never get shorter, so
+     * the length is read once.
+     *
+     * @return the block, or null when there is none up to the end
+     */
+    private Block<T> nextLiveBlock(ThreadMetaData md, ArrayList<Block<T>> list) {
+        int length = list.size();
+        while(md.stealFromListIndex < length - 1) {
+            Block<T> block = list.get(++md.stealFromListIndex);
+            if(block != null && !block.deleted.get()) return block;
+        }
+        return null;
+    }
+
     private T nextStealItem() throws CannotStealException {
         ThreadMetaData md = localMetadata.get();
-        AtomicReferenceArray<T> stealBlock = null;
 
         //  This is our first attempt to steal, we try to steal from
         //  the next list, if we are the only thread, throw exception
@@ -217,24 +335,18 @@ public class LeakyConcurrentBag<T> implements Bag {
             md.stealFromListIndex = 0;
             md.stealFromBlockIndex = 0;
 
-            stealBlock = nextStealBlock();
+            md.stealBlock = nextStealBlock();
             md.isStealInit = true;
-        } else {
-            //  End of block
-            if(md.stealFromBlockIndex >= blockSize) {
-                //  Mark as deleted
-                bagArrayList.get(md.stealFromBagIndex).get(md.stealFromListIndex).deleted.set(true);
-
-                //  Find the next block which has not been marked as deleted
-                stealBlock = nextStealBlock();
-                md.stealFromBlockIndex = 0;
-            } else {
-                //  Get the current steal block
-                stealBlock = bagArrayList.get(md.stealFromBagIndex).get(md.stealFromListIndex).blockData;
-            }
+        } else if(md.stealFromBlockIndex >= blockSize) {
+            //  End of block, mark as deleted
+            md.stealBlock.deleted.set(true);
+
+            //  Find the next block which has not been marked as deleted
+            md.stealBlock = nextStealBlock();
+            md.stealFromBlockIndex = 0;
         }
 
-        T item = stealBlock.get(md.stealFromBlockIndex++);
+        T item = md.stealBlock.get(md.stealFromBlockIndex++);
         return item;
     }
 
@@ -262,6 +374,36 @@ public class LeakyConcurrentBag<T> implements Bag {
     }
     */
 
+    /**
+     * @return blocks in the lists of all threads
+     */
+    public int blockCount() {
+        return blocks.get();
+    }
+
+    /**
+     * High-water mark of blockCount, the most memory the lists held at
+     * once: blockSize references a block.  Without trimming it never
+     * falls below that again.
+     */
+    public int peakBlockCount() {
+        return peakBlocks.get();
+    }
+
+    /**
+     * @return approximate number of items, adds and removes that overlap
+     *         the call may or may not be counted
+     */
+    @Override
+    public int size() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size.sum()));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
     /**
      * @return true when the thread is already registered
      */
@@ -289,11 +431,11 @@ public class LeakyConcurrentBag<T> implements Bag {
                 logger.error("Cannot register thread " + threadId + " thread is already registered");
                 return false;
             } else {
-                threadToIndexMap.put(threadId, nThreads++);
-                bagArrayList.add(new ArrayList<Block<T>>());
+                int indexInBag = subBags.add(new ArrayList<Block<T>>());
+                threadToIndexMap.put(threadId, indexInBag);
 
                 //  Create the local metadata for this thread
-                ThreadMetaData md = new ThreadMetaData(nThreads-1);
+                ThreadMetaData md = new ThreadMetaData(indexInBag);
                 localMetadata.set(md);
 
                 return true;
@@ -306,16 +448,11 @@ public class LeakyConcurrentBag<T> implements Bag {
     /**
      *
      * Get the number of threads that are currently registered.
-     * Use simple lock to guarantee thread-safety and linearizability
+     * Read from the directory, which never shrinks, so no lock is needed
      *
      * @return
      */
     private int getNThreads() {
-        try {
-            registeredThreadLock.lock();
-            return threadToIndexMap.size();
-        } finally {
-            registeredThreadLock.unlock();
-        }
+        return subBags.size();
     }
 }
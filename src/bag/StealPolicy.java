@@ -0,0 +1,25 @@
+package bag;
+
+/**
+ * Which list a stealer moves on to once the list it steals from has run
+ * dry.  Until then a stealer stays with its last victim, carrying on
+ * where its last steal stopped.  However it picks the next list, a
+ * steal that finds nothing walks all of them before it finds the bag
+ * empty.
+ */
+public enum StealPolicy {
+    /**
+     * The next list in registration order
+     */
+    ROUND_ROBIN,
+
+    /**
+     * A random list, so stealers leaving the same list spread out
+     */
+    RANDOM,
+
+    /**
+     * The one that looks fuller of two random lists
+     */
+    POWER_OF_TWO_CHOICES
+}
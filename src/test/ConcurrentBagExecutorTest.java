@@ -0,0 +1,120 @@
+package test;
+
+import bag.ConcurrentBagExecutor;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentBagExecutorTest {
+
+    /**
+     * A binary tree of tasks, each submitting its children from the
+     * worker running it
+     */
+    private static void tree(ExecutorService executor, int depth, AtomicInteger ran, CountDownLatch done) {
+        executor.execute(() -> {
+            if(depth > 0) {
+                tree(executor, depth - 1, ran, done);
+                tree(executor, depth - 1, ran, done);
+            }
+            ran.incrementAndGet();
+            done.countDown();
+        });
+    }
+
+    @Test(timeout = 20000)
+    public void executeTest() throws Exception {
+        ExecutorService executor = new ConcurrentBagExecutor(4);
+
+        //  2^15 - 1 tasks, almost all submitted by workers
+        AtomicInteger ran = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch((1 << 15) - 1);
+        tree(executor, 14, ran, done);
+        done.await();
+        assertEquals((1 << 15) - 1, ran.get());
+
+        Future<Integer> result = executor.submit(() -> 42);
+        assertEquals(42, (int) result.get());
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(executor.isTerminated());
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownRunsQueuedTasksTest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        ExecutorService executor = new ConcurrentBagExecutor(2);
+
+        //  Both workers busy, the rest waits in the bag
+        for(int i = 0; i < 2; i++) {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    fail("shutdown must not interrupt running tasks");
+                }
+            });
+        }
+        for(int i = 0; i < 100; i++) {
+            executor.execute(ran::incrementAndGet);
+        }
+
+        executor.shutdown();
+        assertTrue(executor.isShutdown());
+        try {
+            executor.execute(ran::incrementAndGet);
+            fail("execute after shutdown must be rejected");
+        } catch (RejectedExecutionException e) {
+            //  expected
+        }
+        assertFalse(executor.awaitTermination(20, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(100, ran.get());
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownNowTest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        ExecutorService executor = new ConcurrentBagExecutor(1);
+
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        started.await();
+        for(int i = 0; i < 5; i++) {
+            executor.execute(() -> { });
+        }
+
+        List<Runnable> notStarted = executor.shutdownNow();
+        assertEquals(5, notStarted.size());
+        interrupted.await();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void idleShutdownTest() throws Exception {
+        //  Workers parked in an empty bag wake up and exit
+        ExecutorService executor = new ConcurrentBagExecutor(8);
+        Thread.sleep(20);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,167 @@
+package test;
+
+import bag.ConcurrentBagPool;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentBagPoolTest {
+
+    @Test
+    public void reuseTest() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        ConcurrentBagPool<Integer> pool = new ConcurrentBagPool<>(created::incrementAndGet, 4);
+
+        ConcurrentBagPool.Entry<Integer> first = pool.borrow();
+        ConcurrentBagPool.Entry<Integer> second = pool.borrow();
+        pool.release(first);
+        pool.release(second);
+
+        //  The last one released comes back first
+        assertSame(second, pool.borrow());
+        assertSame(first, pool.borrow());
+        assertEquals(2, created.get());
+        assertEquals(2, pool.size());
+    }
+
+    @Test(timeout = 10000)
+    public void maxSizeTest() throws Exception {
+        final ConcurrentBagPool<Object> pool = new ConcurrentBagPool<>(Object::new, 2);
+        pool.borrow();
+        final ConcurrentBagPool.Entry<Object> borrowed = pool.borrow();
+        assertNull(pool.borrow(20, TimeUnit.MILLISECONDS));
+
+        //  A release on another thread wakes the waiting borrow
+        Thread other = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            pool.release(borrowed);
+        });
+        other.start();
+
+        assertSame(borrowed, pool.borrow());
+        assertEquals(2, pool.size());
+        other.join();
+    }
+
+    @Test(timeout = 10000)
+    public void evictIdleTest() throws Exception {
+        final List<Object> destroyed = new ArrayList<>();
+        ConcurrentBagPool<Object> pool = new ConcurrentBagPool<>(Object::new, destroyed::add, 8,
+                20, TimeUnit.MILLISECONDS);
+
+        List<ConcurrentBagPool.Entry<Object>> entries = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            entries.add(pool.borrow());
+        }
+        for(ConcurrentBagPool.Entry<Object> entry : entries) {
+            pool.release(entry);
+        }
+        assertEquals(0, pool.evictIdle());
+
+        Thread.sleep(50);
+
+        //  One is borrowed again and so not idle, the others go
+        ConcurrentBagPool.Entry<Object> kept = pool.borrow();
+        pool.release(kept);
+        assertEquals(2, pool.evictIdle());
+        assertEquals(2, destroyed.size());
+        assertFalse(destroyed.contains(kept.get()));
+        assertEquals(1, pool.size());
+        assertSame(kept, pool.borrow());
+    }
+
+    @Test(timeout = 10000)
+    public void evictWakesBorrowerTest() throws Exception {
+        //  The borrow comes between evictIdle taking the only entry and
+        //  lowering the size: it finds no entry and no room, and waits.
+        //  Nobody will release anything, only evictIdle can wake it
+        final AtomicBoolean borrowing = new AtomicBoolean();
+        final CountDownLatch evicting = new CountDownLatch(1);
+        final Thread[] borrower = new Thread[1];
+        final ConcurrentBagPool<Object> pool = new ConcurrentBagPool<>(Object::new, object -> {
+            evicting.countDown();
+            while(!borrowing.get() || borrower[0].getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+        }, 1, 0, TimeUnit.NANOSECONDS);
+
+        final ConcurrentBagPool.Entry<Object> first = pool.borrow();
+        pool.release(first);
+        Thread.sleep(1);
+
+        final AtomicReference<ConcurrentBagPool.Entry<Object>> borrowed = new AtomicReference<>();
+        borrower[0] = new Thread(() -> {
+            try {
+                evicting.await();
+                borrowing.set(true);
+                borrowed.set(pool.borrow());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        borrower[0].start();
+
+        assertEquals(1, pool.evictIdle());
+        borrower[0].join();
+
+        assertNotNull(borrowed.get());
+        assertNotSame(first.get(), borrowed.get().get());
+        assertEquals(1, pool.size());
+    }
+
+    @Test(timeout = 10000)
+    public void threadAffinityTest() throws Exception {
+        final ConcurrentBagPool<Object> pool = new ConcurrentBagPool<>(Object::new, 16);
+        final int nThreads = 4;
+        final boolean[] sameEntry = new boolean[nThreads];
+
+        final CyclicBarrier borrowed = new CyclicBarrier(nThreads);
+
+        //  Each thread keeps getting back the entry it released last.
+        //  They all borrow one before any releases, as a thread with
+        //  nothing in its list would steal another's
+        Thread[] threads = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    ConcurrentBagPool.Entry<Object> mine = pool.borrow();
+                    borrowed.await();
+                    pool.release(mine);
+                    boolean same = true;
+                    for(int j = 0; j < 1000; j++) {
+                        ConcurrentBagPool.Entry<Object> entry = pool.borrow();
+                        same &= entry == mine;
+                        pool.release(entry);
+                    }
+                    sameEntry[index] = same;
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        for(boolean same : sameEntry) {
+            assertTrue(same);
+        }
+        assertEquals(nThreads, pool.size());
+    }
+}
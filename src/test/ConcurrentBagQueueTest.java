@@ -0,0 +1,119 @@
+package test;
+
+import bag.ConcurrentBagQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentBagQueueTest {
+
+    @Test
+    public void offerPollTest() {
+        ConcurrentBagQueue<Integer> queue = new ConcurrentBagQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+
+        for(int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(10, queue.size());
+        assertFalse(queue.isEmpty());
+        assertNotNull(queue.peek());
+
+        //  Our own items come back newest first
+        assertEquals(9, (int) queue.poll());
+        assertTrue(queue.remove(Integer.valueOf(3)));
+        assertFalse(queue.remove(Integer.valueOf(3)));
+        assertFalse(queue.contains(3));
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(8, queue.drainTo(drained));
+        assertEquals(8, drained.size());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offerNullTest() {
+        new ConcurrentBagQueue<Integer>().offer(null);
+    }
+
+    @Test(timeout = 10000)
+    public void takeTest() throws Exception {
+        final ConcurrentBagQueue<Integer> queue = new ConcurrentBagQueue<>();
+        assertNull(queue.poll(20, TimeUnit.MILLISECONDS));
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                queue.put(7);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        producer.start();
+
+        assertEquals(7, (int) queue.take());
+        producer.join();
+    }
+
+    @Test(timeout = 20000)
+    public void executorTest() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+                new ConcurrentBagQueue<>());
+        executor.prestartAllCoreThreads();
+
+        //  Tasks submitted from outside the pool and from its workers
+        final int nTasks = 20000;
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(nTasks);
+        for(int i = 0; i < nTasks / 2; i++) {
+            executor.execute(() -> {
+                ran.incrementAndGet();
+                done.countDown();
+                executor.execute(() -> {
+                    ran.incrementAndGet();
+                    done.countDown();
+                });
+            });
+        }
+
+        done.await();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(nTasks, ran.get());
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownNowTest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ConcurrentBagQueue<>());
+
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                //  shutdownNow interrupts the running task
+            }
+        });
+        started.await();
+        for(int i = 0; i < 5; i++) {
+            executor.execute(() -> { });
+        }
+
+        //  Queued tasks are handed back, not run
+        assertEquals(5, executor.shutdownNow().size());
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
@@ -1,10 +1,25 @@
 package test;
 
+import bag.BagHandle;
+import bag.BagMetrics;
 import bag.ConcurrentBag;
-import bag.ConcurrentBag.ThreadMetaData;
+import bag.StealPolicy;
 import org.junit.Test;
 
-import java.lang.reflect.Field;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -14,78 +29,818 @@ import static org.junit.Assert.*;
 public class ConcurrentBagTest {
 
     @Test
-    public void addTest() throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
+    public void addTest() {
         ConcurrentBag<Integer> bag = new ConcurrentBag<>();
         bag.registerThread();
 
-        Field mdField = Class.forName("bag.ConcurrentBag").getDeclaredField("localMetadata");
-        mdField.setAccessible(true);
-        ThreadMetaData md = (ThreadMetaData) ((ThreadLocal)mdField.get(bag)).get();
+        ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
 
         assertEquals(md.indexInBag, 0);
         assertEquals(md.indexInBlock, 0);
-        assertEquals(md.indexInList, 0);
+        assertNull(md.curBlock);
 
         for(int i = 0; i<2056; i++) {
-            try {
-                bag.add(i);
-                assertEquals(md.curBlock.get(md.indexInBlock-1), i);
-            } catch (ConcurrentBag.NotRegisteredException e) {
-                e.printStackTrace();
-                assertFalse(true);
-            }
+            bag.add(i);
+            assertEquals(md.curBlock.get(md.indexInBlock-1), i);
         }
     }
 
     @Test
-    public void removeTest() throws ClassNotFoundException, NoSuchFieldException,
-                                    IllegalAccessException, NullPointerException {
+    public void removeTest() {
         ConcurrentBag<Integer> bag = new ConcurrentBag<>();
         bag.registerThread();
 
-        Field mdField = Class.forName("bag.ConcurrentBag").getDeclaredField("localMetadata");
-        mdField.setAccessible(true);
-        ThreadMetaData md = (ThreadMetaData) ((ThreadLocal)mdField.get(bag)).get();
+        ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
 
         for(int i = 0; i < 1030; i++) {
-            try {
-                bag.add(i);
-            } catch (ConcurrentBag.NotRegisteredException e) {
-                e.printStackTrace();
-            }
+            bag.add(i);
         }
-        assertEquals(1, md.indexInList);
+        assertEquals(2, listLength(md.curBlock));
         assertEquals(6, md.indexInBlock);
 
         for(int i = 0; i < 3; i++) {
+            assertNotNull(bag.remove());
+        }
+
+        assertEquals(2, listLength(md.curBlock));
+        assertEquals(3, md.indexInBlock);
+
+
+        for(int i = 0; i < 1027; i++) {
+            assertNotNull(bag.remove());
+        }
+
+        //  The emptied head block was unlinked, only the oldest one is kept
+        assertEquals(1, listLength(md.curBlock));
+        assertEquals(0, md.indexInBlock);
+
+        //  Steal on an empty one-thread bag
+        assertNull(bag.remove());
+    }
+
+    @Test
+    public void handleTest() throws Exception {
+        ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        assertFalse(bag.isRegistered());
+
+        BagHandle<Integer> handle = bag.register();
+        assertTrue(bag.isRegistered());
+        assertSame(handle, bag.register());
+
+        //  Handle and Bag methods work on the same list
+        for(int i = 0; i < 2000; i++) {
+            handle.add(i);
+        }
+        bag.add(2000);
+
+        assertEquals(2000, (int) handle.remove());
+        for(int i = 1999; i >= 0; i--) {
+            assertEquals(i, (int) bag.remove());
+        }
+    }
+
+    @Test
+    public void implicitRegistrationTest() throws Exception {
+        ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        assertFalse(bag.isRegistered());
+
+        bag.add(1);
+        assertTrue(bag.isRegistered());
+        assertFalse(bag.registerThread());
+        assertEquals(1, (int) bag.remove());
+
+        assertTrue(bag.deregisterThread());
+        assertFalse(bag.isRegistered());
+        assertFalse(bag.deregisterThread());
+    }
+
+    @Test(timeout = 10000)
+    public void adoptOrphanTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        bag.registerThread();
+
+        //  A thread leaves items behind when it deregisters
+        Thread leaver = new Thread(() -> {
+            for(int i = 0; i < 100; i++) {
+                bag.add(i);
+            }
+            bag.deregisterThread();
+        });
+        leaver.start();
+        leaver.join();
+
+        ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
+
+        //  Our list is empty, so the first remove moves them all into it
+        boolean[] seen = new boolean[100];
+        for(int i = 0; i < 100; i++) {
+            Integer item = bag.remove();
+            assertFalse(seen[item]);
+            seen[item] = true;
+
+            if(i == 0) {
+                assertEquals(99, md.indexInBlock);
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void adoptWhileStealingTest() throws Exception {
+        //  Threads leave while others steal from their lists, so an
+        //  adoption can lose the last items it moves to a stealer.  Every
+        //  item comes out exactly once
+        for(int round = 0; round < 100; round++) {
+            final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(2).build();
+            final int nThreads = 4;
+            final int perThread = 2000;
+            final AtomicIntegerArray seen = new AtomicIntegerArray(nThreads * perThread);
+            Thread[] threads = new Thread[nThreads];
+            for(int i = 0; i < nThreads; i++) {
+                final int first = i * perThread;
+                final boolean adder = i % 2 == 0;
+                threads[i] = new Thread(() -> {
+                    for(int j = 0; j < perThread; j++) {
+                        if(adder || j % 2 == 0) {
+                            bag.add(first + j);
+                        } else {
+                            Integer item = bag.remove();
+                            if(item != null) {
+                                seen.incrementAndGet(item);
+                            }
+                        }
+                    }
+                    bag.deregisterThread();
+                });
+                threads[i].start();
+            }
+            for(Thread t : threads) {
+                t.join();
+            }
+
+            Integer item;
+            while((item = bag.remove()) != null) {
+                seen.incrementAndGet(item);
+            }
+            for(int i = 0; i < nThreads; i++) {
+                for(int j = 0; j < perThread; j++) {
+                    boolean added = i % 2 == 0 || j % 2 == 0;
+                    assertEquals("item " + (i * perThread + j), added ? 1 : 0, seen.get(i * perThread + j));
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void inheritDeadThreadListTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+
+        //  The first thread dies without leaving the bag, the second one
+        //  registers after it and takes over its list and items
+        final AtomicReference<ConcurrentBag<Integer>.ThreadMetaData> deadMd = new AtomicReference<>();
+        final AtomicReference<ConcurrentBag<Integer>.ThreadMetaData> nextMd = new AtomicReference<>();
+        final Integer[] removed = new Integer[1];
+        Thread dead = new Thread(() -> {
             try {
-                bag.remove();
-            } catch (ConcurrentBag.CannotStealException |
-                     ConcurrentBag.NotRegisteredException e) {
+                bag.add(7);
+                deadMd.set(metaData(bag));
+            } catch (Exception e) {
                 e.printStackTrace();
             }
+        });
+        dead.start();
+        dead.join();
+
+        Thread next = new Thread(() -> {
+            try {
+                bag.registerThread();
+                nextMd.set(metaData(bag));
+                removed[0] = bag.remove();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        next.start();
+        next.join();
+
+        assertEquals(deadMd.get().indexInBag, nextMd.get().indexInBag);
+        assertEquals(7, (int) removed[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void stealReclaimsBlocksTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        bag.registerThread();
+
+
+        //  Another thread fills ten blocks of its own list
+        final AtomicReference<ConcurrentBag<Integer>.ThreadMetaData> producerMd = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            bag.registerThread();
+            try {
+                producerMd.set(metaData(bag));
+                for(int i = 0; i < 10 * 1024; i++) {
+                    bag.add(i);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        producer.start();
+        producer.join();
+
+        assertEquals(10, listLength(producerMd.get().curBlock));
+
+        //  Steal everything, every block drained behind the head is unlinked
+        //  except the last one, which is still being stolen from
+        for(int i = 0; i < 10 * 1024; i++) {
+            assertNotNull(bag.remove());
         }
+        assertEquals(2, listLength(producerMd.get().curBlock));
+    }
 
-        assertEquals(1, md.indexInList);
-        assertEquals(3, md.indexInBlock);
+    @Test(timeout = 10000)
+    public void emptyBagTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        final int nThreads = 4;
+        final int perThread = 5000;
+        final AtomicInteger removed = new AtomicInteger(0);
 
+        //  Every thread adds, then removes until the bag says it is empty,
+        //  which must happen instead of spinning once all items are gone
+        Thread[] threads = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            threads[i] = new Thread(() -> {
+                BagHandle<Integer> handle = bag.register();
+                for(int j = 0; j < perThread; j++) {
+                    handle.add(j);
+                }
+                while(handle.remove() != null) {
+                    removed.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
 
-        for(int i = 0; i < 1027; i++) {
+        assertEquals(nThreads * perThread, removed.get());
+        assertNull(bag.remove());
+    }
+
+    @Test(timeout = 10000)
+    public void takeTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        final int nConsumers = 4;
+        final int perConsumer = 1000;
+        final AtomicInteger taken = new AtomicInteger(0);
+
+        //  Consumers park on the empty bag until the producer adds
+        Thread[] consumers = new Thread[nConsumers];
+        for(int i = 0; i < nConsumers; i++) {
+            consumers[i] = new Thread(() -> {
+                BagHandle<Integer> handle = bag.register();
+                try {
+                    for(int j = 0; j < perConsumer; j++) {
+                        assertNotNull(handle.take());
+                        taken.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            consumers[i].start();
+        }
+
+        for(int i = 0; i < nConsumers * perConsumer; i++) {
+            bag.add(i);
+            if(i % 100 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        for(Thread t : consumers) {
+            t.join();
+        }
+
+        assertEquals(nConsumers * perConsumer, taken.get());
+        assertNull(bag.remove());
+    }
+
+    @Test(timeout = 10000)
+    public void pollTimeoutTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+
+        long start = System.nanoTime();
+        assertNull(bag.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        Thread producer = new Thread(() -> {
             try {
-                bag.remove();
-            } catch (ConcurrentBag.CannotStealException |
-                    ConcurrentBag.NotRegisteredException e) {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            bag.add(42);
+        });
+        producer.start();
+
+        assertEquals(42, (int) bag.poll(5, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test(timeout = 10000)
+    public void addAllDrainToTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        bag.registerThread();
+
+        ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
+
+        List<Integer> items = new ArrayList<>();
+        for(int i = 0; i < 3000; i++) {
+            items.add(i);
         }
+        bag.addAll(items);
+        bag.addAll(new Integer[] {3000, 3001});
 
-        //  Steal on an empty one-thread bag
-        try {
+        assertEquals(3, listLength(md.curBlock));
+        assertEquals(3002 - 2 * 1024, md.indexInBlock);
+
+        //  Drain part locally, newest first
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(1000, bag.drainTo(drained::add, 1000));
+        assertEquals(3001, (int) drained.get(0));
+        assertEquals(2002, (int) drained.get(999));
+
+        //  Another thread steals the rest
+        final boolean[] seen = new boolean[3002];
+        final int[] stolen = new int[1];
+        Thread thief = new Thread(() ->
+            stolen[0] = bag.drainTo(item -> seen[item] = true, Integer.MAX_VALUE));
+        thief.start();
+        thief.join();
+
+        assertEquals(2002, stolen[0]);
+        for(int i = 0; i < 2002; i++) {
+            assertTrue(seen[i]);
+        }
+        assertEquals(0, bag.drainTo(drained::add, 10));
+    }
+
+    @Test
+    public void blockSizeTest() {
+        ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(16).build();
+        ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
+
+        for(int i = 0; i < 40; i++) {
+            bag.add(i);
+        }
+        assertEquals(3, listLength(md.curBlock));
+        assertEquals(16, md.curBlock.length());
+        assertEquals(8, md.indexInBlock);
+    }
+
+    @Test
+    public void adaptiveBlockSizeTest() {
+        ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(4).adaptiveBlockSize(32).build();
+        ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
+
+        //  Every block filled doubles the next one, up to the maximum
+        for(int i = 0; i < 4 + 8 + 16 + 32 + 32; i++) {
+            bag.add(i);
+        }
+        int[] sizes = {32, 32, 16, 8, 4};
+        ConcurrentBag.Block<Integer> block = md.curBlock;
+        for(int size : sizes) {
+            assertEquals(size, block.length());
+            block = block.getNext();
+        }
+        assertNull(block);
+
+        //  Every block emptied halves it again
+        for(int i = 0; i < 32 + 32 + 16; i++) {
+            assertNotNull(bag.remove());
+        }
+        assertEquals(8, md.nextBlockSize);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void adaptiveBlockSizeBelowBlockSizeTest() {
+        ConcurrentBag.builder().blockSize(64).adaptiveBlockSize(32);
+    }
+
+    @Test(timeout = 10000)
+    public void bulkStealTest() throws Exception {
+        final ConcurrentBag<Integer> bag = ConcurrentBag.builder().bulkSteal().build();
+        for(int i = 0; i < 100; i++) {
+            bag.add(i);
+        }
+
+        //  The thief gets the oldest item, and half of the 99 left move
+        //  into its list, where it removes them newest first
+        final List<Integer> stolen = new ArrayList<>();
+        final int[] local = new int[1];
+        Thread thief = new Thread(() -> {
+            ConcurrentBag<Integer>.ThreadMetaData md = metaData(bag);
+            stolen.add(bag.remove());
+            local[0] = md.indexInBlock;
+            stolen.add(bag.remove());
+        });
+        thief.start();
+        thief.join();
+
+        assertEquals(Arrays.asList(0, 49), stolen);
+        assertEquals(49, local[0]);
+
+        //  Our own half is untouched
+        for(int i = 99; i >= 50; i--) {
+            assertEquals(i, (int) bag.remove());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void bulkStealEmptyTest() throws Exception {
+        final int nThreads = 4;
+        final int nItems = 2000;
+
+        //  Nothing is added once the thieves start, so after any of them
+        //  finds the bag empty no remove may find an item.  Items on their
+        //  way between lists must keep the others from seeing it empty
+        for(int round = 0; round < 200; round++) {
+            final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(16).bulkSteal().build();
+            for(int i = 0; i < nItems; i++) {
+                bag.add(i);
+            }
+
+            final AtomicInteger removed = new AtomicInteger();
+            final AtomicInteger lateItems = new AtomicInteger();
+            final AtomicBoolean foundEmpty = new AtomicBoolean();
+            Thread[] threads = new Thread[nThreads];
+            for(int i = 0; i < nThreads; i++) {
+                threads[i] = new Thread(() -> {
+                    while(true) {
+                        boolean emptyBefore = foundEmpty.get();
+                        Integer item = bag.remove();
+                        if(item == null) {
+                            foundEmpty.set(true);
+                            return;
+                        }
+                        removed.incrementAndGet();
+                        if(emptyBefore) {
+                            lateItems.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread t : threads) {
+                t.join();
+            }
+
+            assertEquals(0, lateItems.get());
+            assertEquals(nItems, removed.get());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void stealPolicyTest() throws Exception {
+        final int nThreads = 4;
+        final int perThread = 2000;
+
+        //  Every policy hands out each item exactly once and finds the
+        //  bag empty in the end
+        for(StealPolicy policy : StealPolicy.values()) {
+            final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(16).stealPolicy(policy).build();
+            final AtomicIntegerArray seen = new AtomicIntegerArray(nThreads * perThread);
+
+            Thread[] threads = new Thread[nThreads];
+            for(int i = 0; i < nThreads; i++) {
+                final int base = i * perThread;
+                threads[i] = new Thread(() -> {
+                    for(int j = 0; j < perThread; j++) {
+                        bag.add(base + j);
+                        if((j & 3) == 0) {
+                            Integer item = bag.remove();
+                            if(item != null) {
+                                seen.incrementAndGet(item);
+                            }
+                        }
+                    }
+                    Integer item;
+                    while((item = bag.remove()) != null) {
+                        seen.incrementAndGet(item);
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread t : threads) {
+                t.join();
+            }
+
+            assertNull(bag.remove());
+            for(int i = 0; i < nThreads * perThread; i++) {
+                assertEquals(policy.toString(), 1, seen.get(i));
+            }
+        }
+    }
+
+    private static ConcurrentBag<Integer>.ThreadMetaData metaData(ConcurrentBag<Integer> bag) {
+        return (ConcurrentBag<Integer>.ThreadMetaData) bag.register();
+    }
+
+    private static int listLength(ConcurrentBag.Block<?> block) {
+        int length = 0;
+        for(; block != null; block = block.getNext()) {
+            length++;
+        }
+        return length;
+    }
+
+    @Test(timeout = 10000)
+    public void stealDomainTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        //  One producer in another domain, then one in ours, so the
+        //  round robin scan would reach the other domain first.  Both
+        //  stay alive so their lists are stolen from, not taken over
+        Thread[] producers = new Thread[2];
+        for(int i = 0; i < 2; i++) {
+            final int domain = 1 - i;
+            final CountDownLatch added = new CountDownLatch(1);
+            producers[i] = new Thread(() -> {
+                bag.registerThread(domain);
+                for(int j = 0; j < 10; j++) {
+                    bag.add(domain * 100 + j);
+                }
+                added.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            producers[i].start();
+            added.await();
+        }
+
+        //  Our domain is emptied before anything crosses over
+        bag.registerThread(0);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(bag.remove() < 100);
+        }
+        for(int i = 0; i < 10; i++) {
+            assertTrue(bag.remove() >= 100);
+        }
+        assertNull(bag.remove());
+
+        done.countDown();
+        for(Thread t : producers) {
+            t.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sizeTest() throws Exception {
+        final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(4).build();
+        assertTrue(bag.isEmpty());
+
+        for(int i = 0; i < 10; i++) {
+            bag.add(i);
+        }
+        bag.remove();
+        assertEquals(9, bag.size());
+
+        //  Another thread adds to its own list and steals from ours
+        Thread other = new Thread(() -> {
+            bag.add(10);
+            bag.add(11);
+            bag.remove();
+            bag.remove();
+            bag.remove();
+        });
+        other.start();
+        other.join();
+        assertEquals(8, bag.size());
+
+        //  The other thread is gone, its list still shows under it until
+        //  the list is taken over.  Items moved between lists still count
+        Map<Thread, Integer> occupancy = bag.occupancy();
+        assertEquals(8, (int) occupancy.get(Thread.currentThread()));
+        assertEquals(0, (int) occupancy.get(other));
+
+        while(bag.remove() != null);
+        assertEquals(0, bag.size());
+        assertTrue(bag.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void iteratorTest() throws Exception {
+        final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(8).build();
+        for(int i = 0; i < 100; i++) {
+            bag.add(i);
+        }
+        Thread other = new Thread(() -> {
+            for(int i = 100; i < 200; i++) {
+                bag.add(i);
+            }
+        });
+        other.start();
+        other.join();
+
+        //  Every item is seen once, and none is taken out
+        boolean[] seen = new boolean[200];
+        for(Integer item : bag) {
+            assertFalse(seen[item]);
+            seen[item] = true;
+        }
+        for(boolean s : seen) {
+            assertTrue(s);
+        }
+        assertEquals(200, bag.size());
+
+        //  Splits fall between lists, then between blocks of a list
+        Spliterator<Integer> rest = bag.spliterator();
+        Spliterator<Integer> otherList = rest.trySplit();
+        assertNotNull(otherList);
+        assertNotNull(rest.trySplit());
+        assertNotNull(otherList.trySplit());
+
+        assertEquals(199 * 200 / 2, bag.parallelStream().mapToInt(Integer::intValue).sum());
+        assertEquals(200L, bag.stream().distinct().count());
+    }
+
+    @Test(timeout = 10000)
+    public void metricsTest() throws Exception {
+        final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(4).metrics().build();
+
+        //  Three blocks, two of them deleted on the way back down
+        for(int i = 0; i < 10; i++) {
+            bag.add(i);
+        }
+        for(int i = 0; i < 10; i++) {
+            bag.remove();
+        }
+
+        BagMetrics metrics = bag.metrics();
+        assertEquals(10L, metrics.localHits());
+        assertEquals(3L, metrics.blocksAllocated());
+        assertEquals(2L, metrics.blocksReclaimed());
+        assertEquals(0L, metrics.stealAttempts());
+
+        //  Another thread steals two items, then finds the bag empty
+        bag.add(10);
+        bag.add(11);
+        Thread other = new Thread(() -> {
+            bag.remove();
             bag.remove();
-        } catch (ConcurrentBag.CannotStealException |
-                ConcurrentBag.NotRegisteredException e) {
-            assertTrue(e instanceof ConcurrentBag.CannotStealException);
+            bag.remove();
+        });
+        other.start();
+        other.join();
+
+        //  The thread left, its counts stay
+        metrics = bag.metrics();
+        assertEquals(10L, metrics.localHits());
+        assertEquals(3L, metrics.stealAttempts());
+        assertEquals(1L, metrics.emptyScans());
+        assertEquals(0L, metrics.failedStealCas());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = bag.registerMBean("metricsTest");
+        try {
+            assertEquals(3L, server.getAttribute(name, "StealAttempts"));
+            assertEquals(0, server.getAttribute(name, "Size"));
+            assertEquals(true, server.getAttribute(name, "MetricsEnabled"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+
+        //  Off by default
+        ConcurrentBag<Integer> plain = new ConcurrentBag<>();
+        plain.add(1);
+        plain.remove();
+        assertEquals(0L, plain.metrics().localHits());
+    }
+
+    @Test(timeout = 20000)
+    public void recycleBlocksTest() throws Exception {
+        final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(4).recycleBlocks(1).metrics().build();
+
+        //  Going back and forth across a block boundary reuses the head
+        //  block emptied on the way down
+        for(int i = 0; i < 5; i++) {
+            bag.add(i);
+        }
+        for(int round = 0; round < 100; round++) {
+            assertNotNull(bag.remove());
+            assertNotNull(bag.remove());
+            bag.add(round);
+            bag.add(round);
+        }
+        assertEquals(2L, bag.metrics().blocksAllocated());
+        assertEquals(100L, bag.metrics().blocksRecycled());
+
+        //  Owners churning across block boundaries while stealers walk
+        //  their lists: every item comes out exactly once
+        final ConcurrentBag<Integer> shared = ConcurrentBag.builder().blockSize(2).recycleBlocks(2).build();
+        final int nThreads = 4;
+        final int perThread = 20000;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(nThreads * perThread);
+        Thread[] threads = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            final int first = i * perThread;
+            threads[i] = new Thread(() -> {
+                for(int j = 0; j < perThread; j++) {
+                    shared.add(first + j);
+                    if(j % 3 == 2) {
+                        for(int k = 0; k < 2; k++) {
+                            Integer item = shared.remove();
+                            if(item != null) {
+                                seen.incrementAndGet(item);
+                            }
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
         }
 
+        Integer item;
+        while((item = shared.remove()) != null) {
+            seen.incrementAndGet(item);
+        }
+        for(int i = 0; i < seen.length(); i++) {
+            assertEquals("item " + i, 1, seen.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void idleSparesTest() throws Exception {
+        final ConcurrentBag<Integer> bag = ConcurrentBag.builder().blockSize(4).recycleBlocks(4).metrics().build();
+
+        //  A burst of ten blocks, drained: the head and four spares stay
+        for(int i = 0; i < 40; i++) {
+            bag.add(i);
+        }
+        for(int i = 0; i < 40; i++) {
+            assertNotNull(bag.remove());
+        }
+        assertEquals(5L, bag.metrics().blocks());
+        assertEquals(10L, bag.metrics().peakBlocks());
+
+        //  The spares go once a whole period passed without operations
+        assertEquals(0, bag.releaseIdleSpares());
+        assertEquals(4, bag.releaseIdleSpares());
+        assertEquals(1L, bag.metrics().blocks());
+        bag.add(1);
+        assertEquals(0, bag.releaseIdleSpares());
+
+        //  The blocks of a list adopted after its thread left are dropped
+        Thread t = new Thread(() -> {
+            for(int i = 0; i < 8; i++) {
+                bag.add(i);
+            }
+            bag.deregisterThread();
+        });
+        t.start();
+        t.join();
+        assertEquals(3L, bag.metrics().blocks());
+        for(int i = 0; i < 9; i++) {
+            assertNotNull(bag.remove());
+        }
+        assertEquals(2L, bag.metrics().blocks());
+        assertEquals(10L, bag.metrics().peakBlocks());
+    }
+
+    @Test(timeout = 10000)
+    public void manyThreadsTest() throws Exception {
+        final ConcurrentBag<Integer> bag = new ConcurrentBag<>();
+        bag.registerThread();
+
+        //  Enough threads to spill past the first directory segment
+        int nThreads = 100;
+        Thread[] threads = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            final int item = i;
+            threads[i] = new Thread(() -> {
+                bag.registerThread();
+                bag.add(item);
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        boolean[] seen = new boolean[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            Integer item = bag.remove();
+            assertNotNull(item);
+            assertFalse(seen[item]);
+            seen[item] = true;
+        }
     }
 }
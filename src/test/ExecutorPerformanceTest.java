@@ -0,0 +1,173 @@
+package test;
+
+import bag.ConcurrentBagExecutor;
+import bag.ConcurrentBagQueue;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Task throughput of ConcurrentBagExecutor, ForkJoinPool, and a
+ * ThreadPoolExecutor over different work queues.
+ *
+ * In external mode the main thread submits every task.  In local mode
+ * it submits one task per worker, and each task submits the next one
+ * from the worker running it, which is where the bag keeps tasks on
+ * the thread that produced them.  In tree mode every task submits two
+ * more, down to the depth that gives about as many tasks as asked for.
+ */
+public class ExecutorPerformanceTest {
+    final static Logger logger = Logger.getLogger(ExecutorPerformanceTest.class);
+
+    private static class TreeTask implements Runnable {
+        private final ExecutorService executor;
+        private final int depth;
+        private final CountDownLatch done;
+
+        TreeTask(ExecutorService executor, int depth, CountDownLatch done) {
+            this.executor = executor;
+            this.depth = depth;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            if(depth > 0) {
+                executor.execute(new TreeTask(executor, depth - 1, done));
+                executor.execute(new TreeTask(executor, depth - 1, done));
+            }
+            done.countDown();
+        }
+    }
+
+    private static class Task implements Runnable {
+        private final ExecutorService executor;
+        private final AtomicInteger submitted;
+        private final int nTasks;
+        private final CountDownLatch done;
+
+        Task(ExecutorService executor, AtomicInteger submitted, int nTasks, CountDownLatch done) {
+            this.executor = executor;
+            this.submitted = submitted;
+            this.nTasks = nTasks;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            //  Local mode: pass the work on from this worker
+            if(submitted != null && submitted.incrementAndGet() <= nTasks) {
+                executor.execute(new Task(executor, submitted, nTasks, done));
+            }
+            done.countDown();
+        }
+    }
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newArgumentParser("Executor Performance");
+        parser.addArgument("-n").help("Number of worker threads");
+        parser.addArgument("-t").help("Number of tasks");
+        parser.addArgument("-e").setDefault("tpe").help("Executor [tpe|fj|bag]");
+        parser.addArgument("-q").setDefault("linked").help("Work queue of tpe [bag|linked|transfer]");
+        parser.addArgument("-m").setDefault("external").help("Who submits the tasks [external|local|tree]");
+
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+
+            int nThreads = Integer.parseInt(ns.getString("n"));
+            int nTasks = Integer.parseInt(ns.getString("t"));
+            String executorName = ns.getString("e");
+            String queueName = ns.getString("q");
+            String mode = ns.getString("m");
+
+            BlockingQueue<Runnable> queue;
+            if(queueName.equals("bag")) {
+                queue = new ConcurrentBagQueue<>();
+            } else if(queueName.equals("linked")) {
+                queue = new LinkedBlockingQueue<>();
+            } else if(queueName.equals("transfer")) {
+                queue = new LinkedTransferQueue<>();
+            } else {
+                logger.error("Invalid work queue " + queueName);
+                return;
+            }
+
+            if(!mode.equals("external") && !mode.equals("local") && !mode.equals("tree")) {
+                logger.error("Invalid mode " + mode);
+                return;
+            }
+
+            ExecutorService executor;
+            if(executorName.equals("tpe")) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, queue);
+                pool.prestartAllCoreThreads();
+                executor = pool;
+            } else if(executorName.equals("fj")) {
+                executor = new ForkJoinPool(nThreads);
+            } else if(executorName.equals("bag")) {
+                executor = new ConcurrentBagExecutor(nThreads);
+            } else {
+                logger.error("Invalid executor " + executorName);
+                return;
+            }
+
+            //  A full tree of depth d has 2^(d+1) - 1 tasks
+            int depth = 0;
+            while((2 << (depth + 1)) - 1 <= nTasks) {
+                depth++;
+            }
+            if(mode.equals("tree")) {
+                nTasks = (2 << depth) - 1;
+            }
+
+            logger.debug("Beginning test: n=" + nThreads + " t=" + nTasks + " e=" + executorName
+                    + (executorName.equals("tpe") ? " q=" + queueName : "") + " m=" + mode);
+
+            CountDownLatch done;
+            long executionTime = System.currentTimeMillis();
+            if(mode.equals("external")) {
+                done = new CountDownLatch(nTasks);
+                for(int i = 0; i < nTasks; i++) {
+                    executor.execute(new Task(executor, null, nTasks, done));
+                }
+            } else if(mode.equals("tree")) {
+                done = new CountDownLatch(nTasks);
+                executor.execute(new TreeTask(executor, depth, done));
+            } else {
+                //  Each chain ends once nTasks tasks were submitted in all
+                AtomicInteger submitted = new AtomicInteger(nThreads);
+                done = new CountDownLatch(nTasks);
+                for(int i = 0; i < nThreads; i++) {
+                    executor.execute(new Task(executor, submitted, nTasks, done));
+                }
+            }
+
+            done.await();
+            executionTime = System.currentTimeMillis() - executionTime;
+
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+
+            logger.debug("Test Complete");
+            logger.debug("Execution Time: " + executionTime + "ms");
+            logger.debug("Throughput: " + (nTasks * 1000L / Math.max(1, executionTime)) + " tasks/s");
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the tasks");
+        }
+    }
+}
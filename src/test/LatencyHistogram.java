@@ -0,0 +1,97 @@
+package test;
+
+/**
+ * Counts of latencies in nanoseconds, in log-linear buckets: exact up to
+ * 127ns, and above that 64 buckets per power of two, so a value is
+ * reported within 1.6% of what was recorded.  Anything from about 36
+ * minutes up lands in the last bucket.
+ *
+ * Not thread safe.  Each thread records into its own, and the results
+ * are merged with add once the threads are done.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int MAX_SHIFT = 34;
+
+    private final long[] counts = new long[LINEAR + MAX_SHIFT * SUB_BUCKETS];
+    private long count, total, max;
+
+    private static int index(long value) {
+        if(value < LINEAR) {
+            return (int) Math.max(0, value);
+        }
+
+        //  Keep the top seven bits of the value, the first of them set
+        int shift = 57 - Long.numberOfLeadingZeros(value);
+        if(shift > MAX_SHIFT) {
+            return LINEAR + MAX_SHIFT * SUB_BUCKETS - 1;
+        }
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value counted in the bucket
+     */
+    private static long highest(int index) {
+        if(index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        counts[index(nanos)]++;
+        count++;
+        total += nanos;
+        if(nanos > max) {
+            max = nanos;
+        }
+    }
+
+    /**
+     * Add the counts of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the latency that many percent of the values are at or
+     *         below, never more than the largest value recorded
+     */
+    public long percentile(double percentile) {
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,46 @@
+package test;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentileTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100000L, histogram.count());
+        assertEquals(100000L, histogram.max());
+        assertEquals(50000.5, histogram.mean(), 0.001);
+        assertEquals(1L, histogram.percentile(0));
+        assertEquals(100000L, histogram.percentile(100));
+
+        //  Within a bucket's width of the exact value
+        for(double percentile : new double[] {50, 90, 99, 99.9}) {
+            long exact = (long) (percentile * 1000);
+            long reported = histogram.percentile(percentile);
+            assertTrue(reported >= exact);
+            assertTrue(reported <= exact + exact / 64);
+        }
+    }
+
+    @Test
+    public void addTest() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for(int i = 0; i < 99; i++) {
+            first.record(100);
+        }
+        second.record(1000000);
+
+        first.add(second);
+        assertEquals(100L, first.count());
+        assertEquals(100L, first.percentile(99));
+        assertEquals(1000000L, first.percentile(99.9));
+        assertEquals(1000000L, first.max());
+    }
+}
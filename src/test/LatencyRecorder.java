@@ -0,0 +1,72 @@
+package test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One test thread's operation latencies, a histogram per kind of
+ * operation.
+ *
+ * Unpaced, each operation is timed on its own.  Paced to a rate, every
+ * operation has a start time fixed by the rate, and is timed from then:
+ * an operation held up by a slow one before it is charged with the wait
+ * too, as a client issuing requests at that rate would see it, instead
+ * of the stall hiding as a single slow sample.
+ */
+class LatencyRecorder {
+    enum Operation {
+        ADD, REMOVE, STEAL, EMPTY;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+
+    private final long interval;
+    private long next, start, elapsed;
+
+    /**
+     * @param rate operations per second, or 0 to run unpaced
+     */
+    LatencyRecorder(long rate) {
+        for(int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    }
+
+    /**
+     * Called right before an operation, waits for its start time when paced
+     */
+    void begin() {
+        if(interval == 0) {
+            start = System.nanoTime();
+            return;
+        }
+
+        if(next == 0) {
+            next = System.nanoTime();
+        }
+        while(System.nanoTime() < next) {
+            Thread.onSpinWait();
+        }
+        start = next;
+        next += interval;
+    }
+
+    /**
+     * Called right after the operation begun last
+     */
+    void end() {
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * Record the operation ended last as the given kind, which the caller
+     * may work out after the clock stopped
+     */
+    void record(Operation operation) {
+        histograms[operation.ordinal()].record(elapsed);
+    }
+}
@@ -0,0 +1,72 @@
+package test;
+
+import bag.LeakyConcurrentBag;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LeakyConcurrentBagTest {
+
+    @Test
+    public void reuseBlocksTest() throws Exception {
+        LeakyConcurrentBag<Integer> bag = new LeakyConcurrentBag<>(2);
+        bag.registerThread();
+
+        //  Down into the first block and back up into the second, which
+        //  is reused without touching the items below it
+        for(int i = 0; i < 3; i++) {
+            bag.add(i);
+        }
+        assertEquals(2, (int) bag.remove());
+        assertEquals(1, (int) bag.remove());
+        bag.add(3);
+        bag.add(4);
+        bag.add(5);
+
+        assertEquals(2, bag.blockCount());
+        for(int i = 5; i >= 3; i--) {
+            assertEquals(i, (int) bag.remove());
+        }
+        assertEquals(0, (int) bag.remove());
+    }
+
+    @Test
+    public void trimTest() throws Exception {
+        LeakyConcurrentBag<Integer> bag = new LeakyConcurrentBag<>(4, 16);
+        bag.registerThread();
+
+        //  A burst of ten blocks, then a steady load within the first two
+        for(int i = 0; i < 40; i++) {
+            bag.add(i);
+        }
+        for(int i = 0; i < 38; i++) {
+            bag.remove();
+        }
+        assertEquals(10, bag.blockCount());
+
+        for(int i = 0; i < 32; i++) {
+            bag.add(i);
+            bag.remove();
+        }
+
+        //  The block in use and one spare are left, the peak is kept
+        assertEquals(2, bag.blockCount());
+        assertEquals(10, bag.peakBlockCount());
+        assertEquals(2, bag.size());
+
+        //  Without a trim interval the list keeps its peak size
+        LeakyConcurrentBag<Integer> untrimmed = new LeakyConcurrentBag<>(4);
+        untrimmed.registerThread();
+        for(int i = 0; i < 40; i++) {
+            untrimmed.add(i);
+        }
+        for(int i = 0; i < 38; i++) {
+            untrimmed.remove();
+        }
+        for(int i = 0; i < 32; i++) {
+            untrimmed.add(i);
+            untrimmed.remove();
+        }
+        assertEquals(10, untrimmed.blockCount());
+    }
+}
@@ -1,17 +1,23 @@
 package test;
 
 import bag.ConcurrentBag;
-import bag.LeakyConcurrentBag;
+import bag.ConcurrentBagBuilder;
+import bag.StealPolicy;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import org.apache.log4j.Logger;
 
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedTransferQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by rick on 3/30/17.
@@ -19,442 +25,339 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class PerformanceTest {
     final static Logger logger = Logger.getLogger(PerformanceTest.class);
 
-    private static class TransferQueueTestThread extends Thread {
-        private static LinkedTransferQueue<Integer> linkedQueue = new LinkedTransferQueue<>();
-
-        private int threadindex, nthreads, totaloperations;
-        private double addratio;
-
-        public TransferQueueTestThread(int threadindex, int nthreads, int totaloperations, double addratio) {
-            this.threadindex = threadindex;
-            this.nthreads = nthreads;
-            this.totaloperations = totaloperations;
-            this.addratio = addratio;
-
-            if(this.threadindex == 0) {
-                startTimes = new long[nthreads];
-            }
-        }
-
-        @Override
-        public void run() {
-            int noperations = totaloperations/nthreads;
-            boolean isadding = threadindex < addratio * nthreads;
-
-            startTimes[threadindex] = System.currentTimeMillis();
-
-            for(int i=0; i<noperations; i++) {
-                if(isadding) {
-                    linkedQueue.put(i);
-                } else {
-                    linkedQueue.poll();
-                }
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    /**
+     * The measured runs of one thread count and add ratio
+     */
+    private static class Summary {
+        final String config;
+        final double[] throughputs;
+        final LatencyHistogram[] latencies;
+
+        Summary(String config, int repetitions) {
+            this.config = config;
+            this.throughputs = new double[repetitions];
+            this.latencies = new LatencyHistogram[LatencyRecorder.Operation.values().length];
+            for(int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
             }
-            endTimes[threadindex] = System.currentTimeMillis();
         }
-    }
-
-
-    private static class ConcurrentQueueTestThread extends Thread {
-        private static ConcurrentLinkedQueue<Integer> linkedQueue = new ConcurrentLinkedQueue<>();
 
-        private int threadindex, nthreads, totaloperations;
-        private double addratio;
-
-        public ConcurrentQueueTestThread(int threadindex, int nthreads, int totaloperations, double addratio) {
-            this.threadindex = threadindex;
-            this.nthreads = nthreads;
-            this.totaloperations = totaloperations;
-            this.addratio = addratio;
-
-            if(this.threadindex == 0) {
-                startTimes = new long[nthreads];
+        double mean() {
+            double sum = 0;
+            for(double throughput : throughputs) {
+                sum += throughput;
             }
+            return sum / throughputs.length;
         }
 
-        @Override
-        public void run() {
-            int noperations = totaloperations/nthreads;
-            boolean isadding = threadindex < addratio * nthreads;
-
-            startTimes[threadindex] = System.currentTimeMillis();
-
-            for(int i=0; i<noperations; i++) {
-                int counter = 0;
-                int trigger = isadding ? (int) (1024.0 * addratio) : (int) (1024.0 * (1.0 - addratio));
-
-                if(isadding) {
-                    linkedQueue.add(i);
-                } else {
-                    linkedQueue.remove();
-                }
-                if(i != 0 && (counter == trigger || counter == 1024)) {
-                    isadding = !isadding;
-
-                    if(counter == 1024) counter = 0;
-                    else counter++;
-
-                } else {
-                    counter++;
-                }
+        double deviation() {
+            double mean = mean(), squares = 0;
+            for(double throughput : throughputs) {
+                squares += (throughput - mean) * (throughput - mean);
             }
-            endTimes[threadindex] = System.currentTimeMillis();
+            return throughputs.length < 2 ? 0 : Math.sqrt(squares / (throughputs.length - 1));
         }
     }
 
-    private static class ConcurrentBagTestThread extends Thread {
-        private static AtomicInteger addCount = new AtomicInteger(0);
-        private static AtomicInteger registrationCount = new AtomicInteger(0);
-
-        private static ConcurrentBag<Integer> bag = new ConcurrentBag<>();
-        private int threadindex, nthreads, totaloperations;
-        private double addratio;
-
-        public ConcurrentBagTestThread(int threadindex, int nthreads, int totaloperations, double addratio) {
-            this.threadindex = threadindex;
-            this.nthreads = nthreads;
-            this.totaloperations = totaloperations;
-            this.addratio = addratio;
-        }
-
-        @Override
-        public void run() {
-            int operations = totaloperations/nthreads;
-            boolean isadding = threadindex < addratio * nthreads;
-
-            //  Synchronize thread registration
-            bag.registerThread();
-            registrationCount.getAndIncrement();
-            while(registrationCount.get() != nthreads);
-
-            //  All threads add some items to start
-            for(int i=0; i<1024; i++) {
-                try {
-                    bag.add(i);
-                } catch (ConcurrentBag.NotRegisteredException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            //  Synchronize addition
-            addCount.getAndIncrement();
-            while(addCount.get() != nthreads);
-
-            startTimes[threadindex] = System.currentTimeMillis();
-
-            for(int i=1024; i<operations; i++) {
-                int counter = 0;
-                int trigger = isadding ? (int) (1024.0 * addratio) : (int) (1024.0 * (1.0 - addratio));
-
-                try {
-                    if(isadding) {
-                        bag.add(i);
-                    } else {
-                        bag.remove();
-                    }
-
-                    if(i != 0 && (counter == trigger || counter == 1024)) {
-                        isadding = !isadding;
-
-                        if(counter == 1024) counter = 0;
-                        else counter++;
-
-                    } else {
-                        counter++;
-                    }
+    private static String percentileLabel(double percentile) {
+        return "p" + (percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile));
+    }
 
-                } catch (ConcurrentBag.NotRegisteredException e) {
-                    e.printStackTrace();
-                    return;
-                } catch (ConcurrentBag.CannotStealException e) {
-                    logger.debug("Thread " + threadindex + " Cannot Steal Exception");
-                    e.printStackTrace();
-                }
+    private static void logLatencies(Summary summary) {
+        LatencyRecorder.Operation[] operations = LatencyRecorder.Operation.values();
+        for(int i = 0; i < operations.length; i++) {
+            LatencyHistogram histogram = summary.latencies[i];
+            if(histogram.count() == 0) {
+                continue;
             }
-
-            endTimes[threadindex] = System.currentTimeMillis();
-            //logger.debug("Thread " + threadindex + " finished in " + (endTimes[threadindex] - startTimes[threadindex]) + "ms");
-
-            //  Make sure there are enough elements for removers to remove
-            if(isadding) {
-                for(int i=0; i<1024; i++) {
-                    try {
-                        bag.add(i);
-                    } catch (ConcurrentBag.NotRegisteredException e) {
-                        e.printStackTrace();
-                    }
-                }
+            StringBuilder line = new StringBuilder("Latency " + operations[i].label() + ": n=" + histogram.count());
+            for(double percentile : PERCENTILES) {
+                line.append(" ").append(percentileLabel(percentile)).append("=").append(histogram.percentile(percentile)).append("ns");
             }
-
+            logger.debug(line.append(" max=").append(histogram.max()).append("ns"));
         }
     }
 
-    private static class LeakyConcurrentBagTestThread extends Thread {
-        private static AtomicInteger addCount = new AtomicInteger(0);
-        private static AtomicInteger registrationCount = new AtomicInteger(0);
-
-        private static LeakyConcurrentBag<Integer> bag = new LeakyConcurrentBag<>();
-        private int threadindex, nthreads, totaloperations;
-        private double addratio;
-
-        public LeakyConcurrentBagTestThread(int threadindex, int nthreads, int totaloperations, double addratio) {
-            this.threadindex = threadindex;
-            this.nthreads = nthreads;
-            this.totaloperations = totaloperations;
-            this.addratio = addratio;
-        }
-
-        @Override
-        public void run() {
-            int operations = totaloperations/nthreads;
-            boolean isadding = threadindex < addratio * nthreads;
-
-            //  Synchronize thread registration
-            bag.registerThread();
-            registrationCount.getAndIncrement();
-            while(registrationCount.get() != nthreads);
-
-            //  All threads add some items to start
-            for(int i=0; i<1024; i++) {
-                try {
-                    bag.add(i);
-                } catch (LeakyConcurrentBag.NotRegisteredException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            //  Synchronize addition
-            addCount.getAndIncrement();
-            while(addCount.get() != nthreads);
-
-            startTimes[threadindex] = System.currentTimeMillis();
-
-            for(int i=1024; i<operations; i++) {
-                int counter = 0;
-                int trigger = isadding ? (int) (1024.0 * addratio) : (int) (1024.0 * (1.0 - addratio));
-
-                try {
-                    if(isadding) {
-                        bag.add(i);
-                    } else {
-                        bag.remove();
-                    }
-
-                    if(i != 0 && (counter == trigger || counter == 1024)) {
-                        isadding = !isadding;
-
-                        if(counter == 1024) counter = 0;
-                        else counter++;
-
-                    } else {
-                        counter++;
+    /**
+     * Write the throughputs and latencies of every configuration to file,
+     * as JSON if it ends in .json, otherwise as CSV
+     */
+    private static void writeResults(List<Summary> summaries, String file) throws IOException {
+        LatencyRecorder.Operation[] operations = LatencyRecorder.Operation.values();
+        try(PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            if(file.endsWith(".json")) {
+                out.println("[");
+                for(int s = 0; s < summaries.size(); s++) {
+                    Summary summary = summaries.get(s);
+                    out.println("  {");
+                    out.println("    \"config\": \"" + summary.config + "\",");
+                    out.println("    \"throughput\": " + Math.round(summary.mean()) + ",");
+                    out.println("    \"throughputDeviation\": " + Math.round(summary.deviation()) + ",");
+                    out.println("    \"unit\": \"ns\",");
+                    out.println("    \"operations\": {");
+                    for(int i = 0; i < operations.length; i++) {
+                        LatencyHistogram histogram = summary.latencies[i];
+                        out.print("      \"" + operations[i].label() + "\": {\"count\": " + histogram.count()
+                                + ", \"mean\": " + Math.round(histogram.mean()));
+                        for(double percentile : PERCENTILES) {
+                            out.print(", \"" + percentileLabel(percentile) + "\": " + histogram.percentile(percentile));
+                        }
+                        out.println(", \"max\": " + histogram.max() + "}" + (i < operations.length - 1 ? "," : ""));
                     }
-
-                } catch (LeakyConcurrentBag.NotRegisteredException e) {
-                    e.printStackTrace();
-                    return;
-                } catch (LeakyConcurrentBag.CannotStealException e) {
-                    logger.debug("Thread " + threadindex + " Cannot Steal Exception");
-                    e.printStackTrace();
+                    out.println("    }");
+                    out.println("  }" + (s < summaries.size() - 1 ? "," : ""));
                 }
-            }
-
-            endTimes[threadindex] = System.currentTimeMillis();
-            //logger.debug("Thread " + threadindex + " finished in " + (endTimes[threadindex] - startTimes[threadindex]) + "ms");
-
-            //  Make sure there are enough elements for removers to remove
-            if(isadding) {
-                for(int i=0; i<1024; i++) {
-                    try {
-                        bag.add(i);
-                    } catch (LeakyConcurrentBag.NotRegisteredException e) {
-                        e.printStackTrace();
+                out.println("]");
+            } else {
+                out.print("config,throughput,throughputDeviation,operation,count,mean");
+                for(double percentile : PERCENTILES) {
+                    out.print("," + percentileLabel(percentile));
+                }
+                out.println(",max");
+                for(Summary summary : summaries) {
+                    for(int i = 0; i < operations.length; i++) {
+                        LatencyHistogram histogram = summary.latencies[i];
+                        out.print(summary.config + "," + Math.round(summary.mean()) + "," + Math.round(summary.deviation())
+                                + "," + operations[i].label() + "," + histogram.count() + "," + Math.round(histogram.mean()));
+                        for(double percentile : PERCENTILES) {
+                            out.print("," + histogram.percentile(percentile));
+                        }
+                        out.println("," + histogram.max());
                     }
                 }
             }
-
         }
     }
 
-    private static long executionTime, trueExecutionTime;
-    private static long[] startTimes, endTimes;
+    private static int[] parseInts(String list) {
+        String[] values = list.split(",");
+        int[] parsed = new int[values.length];
+        for(int i = 0; i < values.length; i++) {
+            parsed[i] = Integer.parseInt(values[i].trim());
+        }
+        return parsed;
+    }
 
     public static void main(String[] args) {
         ArgumentParser parser = ArgumentParsers
                 .newArgumentParser("ConcurrentBag Performance")
                 .defaultHelp(true);
 
-        parser.addArgument("-n").help("Number of threads");
-        parser.addArgument("-a").help("Add ratio out of 1.0");
+        parser.addArgument("-n").help("Number of threads, or a comma separated list of them to run in turn");
+        parser.addArgument("-a").help("Add ratio out of 1.0, or a comma separated list of them");
         parser.addArgument("-o").help("Number of operations");
-        parser.addArgument("-d").help("Data structure [bag|queue]");
+        parser.addArgument("-d").help("Data structure [" + WorkloadTarget.STRUCTURES + "]");
+        parser.addArgument("-e").setDefault("mixed").help("Scenario [mixed|phased|bursty|skewed]");
+        parser.addArgument("-c").help("Operations per cycle of adds and removes, or per burst (default: 65536 phased, otherwise 1024)");
+        parser.addArgument("-p").setDefault("100").help("Pause between bursts in microseconds");
+        parser.addArgument("-w").setDefault("1").help("Warmup runs, not measured");
+        parser.addArgument("-k").setDefault("3").help("Measured runs");
+        parser.addArgument("-b").setDefault("1024").help("Block size");
+        parser.addArgument("-m").help("Maximum block size, makes the block size adaptive");
+        parser.addArgument("-y").setDefault("0").help("Emptied blocks each thread keeps for reuse");
+        parser.addArgument("-t").setDefault("0").help("Operations between trims of each leaky list, 0 never trims");
+        parser.addArgument("-s").action(Arguments.storeTrue()).help("Bulk steal, move half a victim's block at a time");
+        parser.addArgument("-g").setDefault("1").help("Number of simulated steal domains");
+        parser.addArgument("-v").setDefault("round").help("Steal victim policy [round|random|p2c]");
+        parser.addArgument("-x").action(Arguments.storeTrue()).help("Count local hits, steals and blocks, and log them after each run");
+        parser.addArgument("-l").action(Arguments.storeTrue()).help("Record the latency of every operation");
+        parser.addArgument("-r").help("Operations per second per thread, paces the threads and implies -l");
+        parser.addArgument("-f").help("Write the results to this file, as JSON if it ends in .json, else CSV; implies -l");
 
         Namespace ns = null;
 
         try {
             ns = parser.parseArgs(args);
 
-            int nthreads = Integer.parseInt(ns.getString("n"));
+            int[] threadCounts = parseInts(ns.getString("n"));
             int nOperations = Integer.parseInt(ns.getString("o"));
-            double addRatio = Double.parseDouble(ns.getString("a"));
+            String[] ratios = ns.getString("a").split(",");
+            double[] addRatios = new double[ratios.length];
+            for(int i = 0; i < ratios.length; i++) {
+                addRatios[i] = Double.parseDouble(ratios[i].trim());
+            }
             String dataStructure = ns.getString("d");
+            int warmups = Integer.parseInt(ns.getString("w"));
+            int repetitions = Integer.parseInt(ns.getString("k"));
 
-            if(addRatio > 1.0 || addRatio < 0.0) {
-                logger.error("Add ratio out of bounds");
+            Workload.Scenario scenario = Workload.Scenario.parse(ns.getString("e"));
+            if(scenario == null) {
+                logger.error("Invalid scenario " + ns.getString("e"));
+                return;
+            }
+            int cycle = ns.getString("c") != null ? Integer.parseInt(ns.getString("c"))
+                    : scenario == Workload.Scenario.PHASED ? 65536 : 1024;
+            long pauseNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(ns.getString("p")));
+            if(cycle < 1 || warmups < 0 || repetitions < 1) {
+                logger.error("Cycle and runs must be positive");
                 return;
-            } else if(addRatio <= 0.5) {
-                logger.warn("Add ratio <= 0.5 " + " not recommended");
             }
 
-            logger.debug("Beginning test: n=" + nthreads + " o=" + nOperations + " a=" + addRatio + " d=" + dataStructure);
-
-            if(dataStructure.equals("bag")) {
-                LinkedList<ConcurrentBagTestThread> testThreads = new LinkedList<>();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.add(new ConcurrentBagTestThread(i, nthreads, nOperations, addRatio));
-                }
-
-                startTimes = new long[nthreads];
-                endTimes = new long[nthreads];
-                executionTime = System.currentTimeMillis();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.get(i).start();
-                }
+            int blockSize = Integer.parseInt(ns.getString("b"));
+            ConcurrentBagBuilder bagOptions = ConcurrentBag.builder().blockSize(blockSize);
+            if(ns.getString("m") != null) {
+                bagOptions.adaptiveBlockSize(Integer.parseInt(ns.getString("m")));
+            }
+            if(ns.getBoolean("s")) {
+                bagOptions.bulkSteal();
+            }
+            int trimInterval = Integer.parseInt(ns.getString("t"));
+            if(trimInterval < 0) {
+                logger.error("Trim interval must not be negative");
+                return;
+            }
+            int spareBlocks = Integer.parseInt(ns.getString("y"));
+            if(spareBlocks > 0) {
+                bagOptions.recycleBlocks(spareBlocks);
+            }
+            if(ns.getBoolean("x")) {
+                bagOptions.metrics();
+            }
 
-                long trueStart = -1, trueEnd = -1;
-                for(int i=0; i<nthreads; i++) {
-                    try {
-                        testThreads.get(i).join();
+            String policy = ns.getString("v");
+            if(policy.equals("round")) {
+                bagOptions.stealPolicy(StealPolicy.ROUND_ROBIN);
+            } else if(policy.equals("random")) {
+                bagOptions.stealPolicy(StealPolicy.RANDOM);
+            } else if(policy.equals("p2c")) {
+                bagOptions.stealPolicy(StealPolicy.POWER_OF_TWO_CHOICES);
+            } else {
+                logger.error("Invalid steal policy " + policy);
+                return;
+            }
 
-                        if(trueStart == -1 || startTimes[i] < trueStart) trueStart = startTimes[i];
-                        if(trueEnd == -1 || endTimes[i] > trueEnd) trueEnd = endTimes[i];
+            if(!Arrays.asList(WorkloadTarget.STRUCTURES.split("\\|")).contains(dataStructure)) {
+                logger.error("Invalid datastructure " + dataStructure);
+                return;
+            }
 
-                    } catch (InterruptedException e) {
-                        logger.debug("Outer Thread Exception in thread join");
-                        e.printStackTrace();
-                    }
+            int stealDomains = Integer.parseInt(ns.getString("g"));
+            for(int nthreads : threadCounts) {
+                if(nthreads < 1 || stealDomains < 1 || stealDomains > nthreads) {
+                    logger.error("Steal domains out of bounds");
+                    return;
                 }
+            }
 
-                trueExecutionTime = trueEnd - trueStart;
-                executionTime = System.currentTimeMillis() - executionTime;
-
-                logger.debug("Test Complete");
-                logger.debug("Overall Execution Time: " + executionTime + "ms");
-                logger.debug("True Execution Time: " + trueExecutionTime + "ms");
-            } else if(dataStructure.equals("leaky")) {
-                LinkedList<LeakyConcurrentBagTestThread> testThreads = new LinkedList<>();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.add(new LeakyConcurrentBagTestThread(i, nthreads, nOperations, addRatio));
+            for(double addRatio : addRatios) {
+                if(addRatio > 1.0 || addRatio < 0.0) {
+                    logger.error("Add ratio out of bounds");
+                    return;
+                } else if(addRatio <= 0.5) {
+                    logger.warn("Add ratio <= 0.5 " + " not recommended");
                 }
 
-                startTimes = new long[nthreads];
-                endTimes = new long[nthreads];
-                executionTime = System.currentTimeMillis();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.get(i).start();
+                //  Its steal spins while the bag is empty, so every thread
+                //  must keep items of its own
+                if(dataStructure.equals("leaky") && (addRatio < 0.5
+                        || scenario == Workload.Scenario.BURSTY || scenario == Workload.Scenario.SKEWED)) {
+                    logger.error("leaky only runs the mixed and phased scenarios, with an add ratio of at least 0.5");
+                    return;
                 }
+            }
 
-                long trueStart = -1, trueEnd = -1;
-                for(int i=0; i<nthreads; i++) {
-                    try {
-                        testThreads.get(i).join();
-
-                        if(trueStart == -1 || startTimes[i] < trueStart) trueStart = startTimes[i];
-                        if(trueEnd == -1 || endTimes[i] > trueEnd) trueEnd = endTimes[i];
-
-                    } catch (InterruptedException e) {
-                        logger.debug("Outer Thread Exception in thread join");
-                        e.printStackTrace();
+            String latencyFile = ns.getString("f");
+            long latencyRate = ns.getString("r") != null ? Long.parseLong(ns.getString("r")) : 0;
+            boolean recordLatencies = ns.getBoolean("l") || latencyRate > 0 || latencyFile != null;
+
+            List<Summary> summaries = new ArrayList<>();
+            for(int nthreads : threadCounts) {
+                for(double addRatio : addRatios) {
+                    String config = "n=" + nthreads + " o=" + nOperations + " a=" + addRatio + " d=" + dataStructure
+                            + " e=" + scenario.name().toLowerCase() + " c=" + cycle
+                            + (scenario == Workload.Scenario.BURSTY ? " p=" + ns.getString("p") : "")
+                            + " b=" + blockSize + (ns.getString("m") != null ? " m=" + ns.getString("m") : "")
+                            + (spareBlocks > 0 ? " y=" + spareBlocks : "") + (trimInterval > 0 ? " t=" + trimInterval : "")
+                            + (ns.getBoolean("s") ? " s" : "") + (ns.getBoolean("x") ? " x" : "")
+                            + " v=" + policy + " g=" + stealDomains
+                            + (latencyRate > 0 ? " r=" + latencyRate : "");
+                    logger.debug("Beginning test: " + config);
+
+                    Workload workload = new Workload(scenario, nthreads, nOperations, addRatio, cycle, pauseNanos, stealDomains);
+                    Summary summary = new Summary(config, repetitions);
+                    long removes = 0, emptyRemoves = 0, crossDomainRemoves = 0, operations = 0, allocatedBytes = 0;
+                    WorkloadTarget target = null;
+
+                    for(int run = -warmups; run < repetitions; run++) {
+                        //  A fresh structure every run
+                        target = WorkloadTarget.create(dataStructure, bagOptions, blockSize, trimInterval);
+                        LatencyRecorder[] recorders = null;
+                        if(recordLatencies && run >= 0) {
+                            recorders = new LatencyRecorder[nthreads];
+                            for(int i = 0; i < nthreads; i++) {
+                                recorders[i] = new LatencyRecorder(latencyRate);
+                            }
+                        }
+
+                        Workload.Result result = workload.run(target, recorders);
+                        logger.debug((run < 0 ? "Warmup " + (run + warmups + 1) : "Run " + (run + 1))
+                                + ": True Execution Time: " + TimeUnit.NANOSECONDS.toMillis(result.nanos) + "ms, "
+                                + Math.round(result.throughput()) + " ops/s");
+                        if(ns.getBoolean("x") && target.metrics() != null) {
+                            logger.debug("Metrics: " + target.metrics());
+                        }
+                        if(target.blocks() != null) {
+                            logger.debug("Blocks: " + target.blocks());
+                        }
+                        if(run < 0) {
+                            continue;
+                        }
+
+                        summary.throughputs[run] = result.throughput();
+                        removes += result.removes;
+                        emptyRemoves += result.emptyRemoves;
+                        crossDomainRemoves += result.crossDomainRemoves;
+                        operations += result.operations;
+                        allocatedBytes = allocatedBytes < 0 || result.allocatedBytes < 0 ? -1 : allocatedBytes + result.allocatedBytes;
+                        if(recorders != null) {
+                            for(LatencyRecorder recorder : recorders) {
+                                for(int i = 0; i < summary.latencies.length; i++) {
+                                    summary.latencies[i].add(recorder.histograms[i]);
+                                }
+                            }
+                        }
                     }
-                }
-
-                trueExecutionTime = trueEnd - trueStart;
-                executionTime = System.currentTimeMillis() - executionTime;
-
-                logger.debug("Test Complete");
-                logger.debug("Overall Execution Time: " + executionTime + "ms");
-                logger.debug("True Execution Time: " + trueExecutionTime + "ms");
-            } else if(dataStructure.equals("queue")) {
-                LinkedList<ConcurrentQueueTestThread> testThreads = new LinkedList<>();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.add(new ConcurrentQueueTestThread(i, nthreads, nOperations, addRatio));
-                }
-
-                startTimes = new long[nthreads];
-                endTimes = new long[nthreads];
-                executionTime = System.currentTimeMillis();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.get(i).start();
-                }
 
-                long trueStart = -1, trueEnd = -1;
-                for(int i=0; i<nthreads; i++) {
-                    try {
-                        testThreads.get(i).join();
-
-                        if(trueStart == -1 || startTimes[i] < trueStart) trueStart = startTimes[i];
-                        if(trueEnd == -1 || endTimes[i] > trueEnd) trueEnd = endTimes[i];
-
-                    } catch (InterruptedException e) {
-                        logger.debug("Outer Thread Exception in thread join");
-                        e.printStackTrace();
+                    logger.debug("Test Complete");
+                    logger.debug("Throughput: " + Math.round(summary.mean()) + " ops/s, deviation "
+                            + Math.round(summary.deviation()) + " over " + repetitions + " runs");
+                    logger.debug("Empty removes: " + emptyRemoves + " of " + removes);
+                    if(stealDomains > 1) {
+                        logger.debug("Cross-domain removes: " + crossDomainRemoves + " of " + (removes - emptyRemoves));
+                    }
+                    if(allocatedBytes >= 0) {
+                        logger.debug(String.format("Allocated: %.1f bytes/op", allocatedBytes / (double) Math.max(1, operations)));
+                    }
+                    if(recordLatencies) {
+                        logLatencies(summary);
                     }
-                }
-
-                trueExecutionTime = trueEnd - trueStart;
-                executionTime = System.currentTimeMillis() - executionTime;
-
-                logger.debug("Test Complete");
-                logger.debug("Overall Execution Time: " + executionTime + "ms");
-                logger.debug("True Execution Time: " + trueExecutionTime + "ms");
-            } else if(dataStructure.equals("transfer")) {
-                LinkedList<TransferQueueTestThread> testThreads = new LinkedList<>();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.add(new TransferQueueTestThread(i, nthreads, nOperations, addRatio));
-                }
-
-                startTimes = new long[nthreads];
-                endTimes = new long[nthreads];
-                executionTime = System.currentTimeMillis();
-
-                for(int i=0;i<nthreads;i++) {
-                    testThreads.get(i).start();
-                }
-
-                long trueStart = -1, trueEnd = -1;
-                for(int i=0; i<nthreads; i++) {
-                    try {
-                        testThreads.get(i).join();
 
-                        if(trueStart == -1 || startTimes[i] < trueStart) trueStart = startTimes[i];
-                        if(trueEnd == -1 || endTimes[i] > trueEnd) trueEnd = endTimes[i];
+                    //  The last run's structure is still reachable, along
+                    //  with the items left in it
+                    System.gc();
+                    Runtime runtime = Runtime.getRuntime();
+                    logger.debug("Heap Used: " + (runtime.totalMemory() - runtime.freeMemory()) / 1024 + "KB");
+                    Reference.reachabilityFence(target);
 
-                    } catch (InterruptedException e) {
-                        logger.debug("Outer Thread Exception in thread join");
-                        e.printStackTrace();
-                    }
+                    summaries.add(summary);
                 }
+            }
 
-                trueExecutionTime = trueEnd - trueStart;
-                executionTime = System.currentTimeMillis() - executionTime;
-
-                logger.debug("Test Complete");
-                logger.debug("Overall Execution Time: " + executionTime + "ms");
-                logger.debug("True Execution Time: " + trueExecutionTime + "ms");
-            } else {
-                logger.error("Invalid datastructure " + dataStructure);
+            if(latencyFile != null) {
+                writeResults(summaries, latencyFile);
             }
 
         } catch (ArgumentParserException e) {
             parser.handleError(e);
             System.exit(1);
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the test threads");
+            System.exit(1);
+        } catch (IOException e) {
+            logger.error("Cannot write the results: " + e.getMessage());
+            System.exit(1);
         }
     }
 }
@@ -0,0 +1,119 @@
+package test;
+
+import bag.IntConcurrentBag;
+import bag.LongConcurrentBag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class PrimitiveConcurrentBagTest {
+
+    @Test
+    public void intAddRemoveTest() {
+        IntConcurrentBag bag = new IntConcurrentBag();
+
+        //  Zero and negative values are ordinary values, only EMPTY is reserved
+        int[] values = {0, -1, 1, Integer.MAX_VALUE, Integer.MIN_VALUE + 1};
+        for(int value : values) {
+            bag.add(value);
+        }
+        for(int i = values.length - 1; i >= 0; i--) {
+            assertEquals(values[i], bag.remove());
+        }
+        assertEquals(IntConcurrentBag.EMPTY, bag.remove());
+    }
+
+    @Test
+    public void longAddRemoveTest() {
+        LongConcurrentBag bag = new LongConcurrentBag();
+
+        long[] values = {0L, -1L, 1L, Long.MAX_VALUE, Long.MIN_VALUE + 1};
+        bag.addAll(values);
+        for(int i = values.length - 1; i >= 0; i--) {
+            assertEquals(values[i], bag.remove());
+        }
+        assertEquals(LongConcurrentBag.EMPTY, bag.remove());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addEmptyTest() {
+        new IntConcurrentBag().add(IntConcurrentBag.EMPTY);
+    }
+
+    @Test(timeout = 10000)
+    public void intStealTest() throws Exception {
+        final IntConcurrentBag bag = new IntConcurrentBag();
+        final int nThreads = 4;
+        final int perThread = 5000;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(nThreads * perThread);
+
+        //  Every thread adds its own values, then drains whatever it can,
+        //  stealing from the others once its list is empty
+        Thread[] threads = new Thread[nThreads];
+        for(int i = 0; i < nThreads; i++) {
+            final int base = i * perThread;
+            threads[i] = new Thread(() -> {
+                for(int j = 0; j < perThread; j++) {
+                    bag.add(base + j);
+                }
+                int value;
+                while((value = bag.remove()) != IntConcurrentBag.EMPTY) {
+                    seen.incrementAndGet(value);
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        for(int i = 0; i < nThreads * perThread; i++) {
+            assertEquals(1, seen.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void longDrainToTest() throws Exception {
+        final LongConcurrentBag bag = new LongConcurrentBag();
+        for(long i = 0; i < 3000; i++) {
+            bag.add(i);
+        }
+
+        final List<Long> drained = new ArrayList<>();
+        assertEquals(1000, bag.drainTo(drained::add, 1000));
+        assertEquals(2999L, (long) drained.get(0));
+
+        //  Another thread steals the rest
+        final int[] stolen = new int[1];
+        Thread thief = new Thread(() -> stolen[0] = bag.drainTo(value -> drained.add(value), Integer.MAX_VALUE));
+        thief.start();
+        thief.join();
+
+        assertEquals(2000, stolen[0]);
+        assertEquals(3000, drained.size());
+    }
+
+    @Test(timeout = 10000)
+    public void intPollTest() throws Exception {
+        final IntConcurrentBag bag = new IntConcurrentBag();
+        assertEquals(IntConcurrentBag.EMPTY, bag.poll(20, TimeUnit.MILLISECONDS));
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            bag.add(0);
+        });
+        producer.start();
+
+        assertEquals(0, bag.take());
+        producer.join();
+    }
+}
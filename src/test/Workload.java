@@ -0,0 +1,257 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static test.LatencyRecorder.Operation.*;
+
+/**
+ * The threads of one PerformanceTest run and what they do.
+ *
+ * Every thread registers with the structure and adds PREFILL items, then
+ * they all start together and each performs its share of the operations.
+ * The scenarios:
+ *
+ *   mixed   Every thread adds for the add ratio of each cycle of
+ *           operations and removes for the rest.  The first threads, up to
+ *           the add ratio of them, begin the cycle adding, the others
+ *           removing.
+ *   phased  As mixed, but all threads add and remove in step, so the
+ *           structure fills and drains as a whole.
+ *   bursty  The first threads, the add ratio of them but leaving at least
+ *           one, only add, a cycle's worth at a time with a pause in
+ *           between.  The others only remove.
+ *   skewed  The first thread only adds, all the others only remove.
+ */
+class Workload {
+    enum Scenario {
+        MIXED, PHASED, BURSTY, SKEWED;
+
+        static Scenario parse(String name) {
+            for(Scenario scenario : values()) {
+                if(scenario.name().equalsIgnoreCase(name)) {
+                    return scenario;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final int PREFILL = 1024;
+
+    /**
+     * What one run measured
+     */
+    static class Result {
+        long nanos, operations, removes, emptyRemoves, crossDomainRemoves;
+
+        //  Bytes the threads allocated while measured, -1 when the JVM
+        //  cannot tell
+        long allocatedBytes;
+
+        //  Null when latencies were not recorded
+        LatencyRecorder[] recorders;
+
+        double throughput() {
+            return operations * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+        }
+    }
+
+    private final Scenario scenario;
+    private final int nthreads, operations, cycle, stealDomains;
+    private final double addRatio;
+    private final long pauseNanos;
+
+    private volatile boolean failed;
+
+    /**
+     * @return bytes allocated by the calling thread so far, or -1 when
+     *         the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if(hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param cycle the number of operations after which a thread's
+     *              pattern of adds and removes repeats
+     * @param pauseNanos how long bursty producers pause between bursts
+     */
+    Workload(Scenario scenario, int nthreads, int operations, double addRatio, int cycle, long pauseNanos, int stealDomains) {
+        this.scenario = scenario;
+        this.nthreads = nthreads;
+        this.operations = operations;
+        this.addRatio = addRatio;
+        this.cycle = cycle;
+        this.pauseNanos = pauseNanos;
+        this.stealDomains = stealDomains;
+    }
+
+    /**
+     * @return true when the thread starts its cycle adding, and in the
+     *         scenarios with separate producers, does nothing but add
+     */
+    private boolean producer(int threadindex) {
+        switch(scenario) {
+            case SKEWED:
+                return threadindex == 0;
+            case BURSTY:
+                //  At least one producer, and one consumer if there is a
+                //  thread for it
+                long producers = Math.max(1, Math.min(nthreads - 1, Math.round(addRatio * nthreads)));
+                return threadindex < producers;
+            default:
+                return threadindex < addRatio * nthreads;
+        }
+    }
+
+    /**
+     * @return true when the thread only removes, in scenarios with
+     *         separate producers
+     */
+    private boolean consumer(int threadindex) {
+        return (scenario == Scenario.BURSTY || scenario == Scenario.SKEWED) && !producer(threadindex);
+    }
+
+    private class Worker extends Thread {
+        private final WorkloadTarget target;
+        private final int threadindex;
+        private final CyclicBarrier start;
+        private final LatencyRecorder recorder;
+
+        long startTime, endTime, removes, emptyRemoves, crossDomainRemoves, allocatedBytes;
+
+        Worker(WorkloadTarget target, int threadindex, CyclicBarrier start, LatencyRecorder recorder) {
+            this.target = target;
+            this.threadindex = threadindex;
+            this.start = start;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } catch (Exception e) {
+                //  Breaks the barrier, for threads still waiting at it
+                failed = true;
+                start.reset();
+                if(!(e instanceof BrokenBarrierException)) {
+                    PerformanceTest.logger.error("Thread " + threadindex + " failed", e);
+                }
+            }
+        }
+
+        private void work() throws Exception {
+            //  Threads are dealt round the steal domains, so each gets
+            //  adders and removers
+            int domain = threadindex % stealDomains;
+            WorkloadTarget.Access access = target.register(domain);
+
+            for(int i = 0; i < PREFILL; i++) {
+                access.add(threadindex);
+            }
+
+            int noperations = operations / nthreads;
+            int addsPerCycle = (int) Math.round(addRatio * cycle);
+            boolean producer = producer(threadindex);
+            boolean consumer = consumer(threadindex);
+
+            //  Mixed threads start part way into the cycle: the adders at
+            //  its adds, the removers at its removes
+            int position = scenario == Scenario.MIXED && !producer ? addsPerCycle % cycle : 0;
+
+            start.await();
+            long startBytes = allocatedBytes();
+            startTime = System.nanoTime();
+
+            for(int i = 0; i < noperations; i++) {
+                boolean adding;
+                if(consumer) {
+                    adding = false;
+                } else if(scenario == Scenario.BURSTY || scenario == Scenario.SKEWED) {
+                    adding = true;
+                    if(scenario == Scenario.BURSTY && i > 0 && i % cycle == 0) {
+                        LockSupport.parkNanos(pauseNanos);
+                    }
+                } else {
+                    adding = position < addsPerCycle;
+                    if(++position == cycle) {
+                        position = 0;
+                    }
+                }
+
+                if(recorder != null) recorder.begin();
+                if(adding) {
+                    access.add(threadindex);
+                    if(recorder != null) {
+                        recorder.end();
+                        recorder.record(ADD);
+                    }
+                } else {
+                    int item = access.remove();
+                    if(recorder != null) {
+                        recorder.end();
+                        recorder.record(item == WorkloadTarget.EMPTY ? EMPTY : access.stole() ? STEAL : REMOVE);
+                    }
+
+                    removes++;
+                    if(item == WorkloadTarget.EMPTY) {
+                        emptyRemoves++;
+                    } else if(item % stealDomains != domain) {
+                        crossDomainRemoves++;
+                    }
+                }
+            }
+
+            endTime = System.nanoTime();
+            allocatedBytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+        }
+    }
+
+    /**
+     * @param recorders one per thread to record latencies, or null
+     */
+    Result run(WorkloadTarget target, LatencyRecorder[] recorders) throws InterruptedException {
+        CyclicBarrier start = new CyclicBarrier(nthreads);
+        Worker[] workers = new Worker[nthreads];
+        for(int i = 0; i < nthreads; i++) {
+            workers[i] = new Worker(target, i, start, recorders == null ? null : recorders[i]);
+        }
+        for(Worker worker : workers) {
+            worker.start();
+        }
+
+        Result result = new Result();
+        long trueStart = Long.MAX_VALUE, trueEnd = Long.MIN_VALUE;
+        for(Worker worker : workers) {
+            worker.join();
+            trueStart = Math.min(trueStart, worker.startTime);
+            trueEnd = Math.max(trueEnd, worker.endTime);
+            result.removes += worker.removes;
+            result.emptyRemoves += worker.emptyRemoves;
+            result.crossDomainRemoves += worker.crossDomainRemoves;
+            result.allocatedBytes = result.allocatedBytes < 0 || worker.allocatedBytes < 0 ? -1
+                    : result.allocatedBytes + worker.allocatedBytes;
+        }
+        if(failed) {
+            throw new IllegalStateException("A test thread failed");
+        }
+
+        result.nanos = trueEnd - trueStart;
+        result.operations = (long) (operations / nthreads) * nthreads;
+        result.recorders = recorders;
+        return result;
+    }
+}
@@ -0,0 +1,258 @@
+package test;
+
+import bag.BagHandle;
+import bag.BagMetrics;
+import bag.ConcurrentBag;
+import bag.ConcurrentBagBuilder;
+import bag.IntConcurrentBag;
+import bag.LeakyConcurrentBag;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedTransferQueue;
+
+/**
+ * A data structure under test, as Workload drives it.  The items are the
+ * indexes of the threads adding them, so a remove tells whose item it
+ * got.
+ */
+abstract class WorkloadTarget {
+    static final String STRUCTURES = "bag|int|handle|leaky|queue|transfer";
+
+    /**
+     * What remove returns when the structure was found empty
+     */
+    static final int EMPTY = -1;
+
+    /**
+     * One test thread's access to the structure
+     */
+    interface Access {
+        void add(int item) throws Exception;
+
+        /**
+         * @return an item, or EMPTY
+         */
+        int remove() throws Exception;
+
+        /**
+         * Called after removes that got an item, outside their timing
+         *
+         * @return true when a remove since the last call took the item
+         *         from another thread's part of the structure
+         */
+        boolean stole();
+    }
+
+    /**
+     * Called on each test thread before it starts
+     *
+     * @param domain the thread's steal domain
+     */
+    abstract Access register(int domain);
+
+    /**
+     * @return the bag's metrics, or null when it keeps none
+     */
+    BagMetrics metrics() {
+        return null;
+    }
+
+    /**
+     * @return the blocks the structure holds now and at its peak, or
+     *         null when it does not count them
+     */
+    String blocks() {
+        return null;
+    }
+
+    private static class QueueTarget extends WorkloadTarget {
+        private final Queue<Integer> queue;
+
+        QueueTarget(Queue<Integer> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        Access register(int domain) {
+            return new Access() {
+                @Override
+                public void add(int item) {
+                    queue.offer(item);
+                }
+
+                @Override
+                public int remove() {
+                    Integer item = queue.poll();
+                    return item == null ? EMPTY : item;
+                }
+
+                @Override
+                public boolean stole() {
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * @param options bag options, for the bags built on ConcurrentBag
+     * @param trimInterval operations between trims of leaky's lists
+     * @return the structure, or null when there is none by that name
+     */
+    static WorkloadTarget create(String structure, ConcurrentBagBuilder options, int blockSize, int trimInterval) {
+        switch(structure) {
+            case "bag":
+                final ConcurrentBag<Integer> items = options.build();
+                return new WorkloadTarget() {
+                    @Override
+                    BagMetrics metrics() {
+                        return items.metrics();
+                    }
+
+                    @Override
+                    Access register(int domain) {
+                        items.registerThread(domain);
+                        return new Access() {
+                            private long stolen;
+
+                            @Override
+                            public void add(int item) {
+                                items.add(item);
+                            }
+
+                            @Override
+                            public int remove() {
+                                Integer item = items.remove();
+                                return item == null ? EMPTY : item;
+                            }
+
+                            @Override
+                            public boolean stole() {
+                                long last = stolen;
+                                stolen = items.stolenByCurrentThread();
+                                return stolen != last;
+                            }
+                        };
+                    }
+                };
+            case "leaky":
+                final LeakyConcurrentBag<Integer> leaky = new LeakyConcurrentBag<>(blockSize, trimInterval);
+                return new WorkloadTarget() {
+                    @Override
+                    String blocks() {
+                        return leaky.blockCount() + ", peak " + leaky.peakBlockCount();
+                    }
+
+                    @Override
+                    Access register(int domain) {
+                        leaky.registerThread();
+                        return new Access() {
+                            //  Leaky never moves items between lists, so
+                            //  a remove stole when it got an item other
+                            //  than the ones this thread adds
+                            private int added = EMPTY, removed = EMPTY;
+
+                            @Override
+                            public void add(int item) throws Exception {
+                                added = item;
+                                leaky.add(item);
+                            }
+
+                            @Override
+                            public int remove() throws Exception {
+                                Integer item;
+                                try {
+                                    item = leaky.remove();
+                                } catch (LeakyConcurrentBag.CannotStealException e) {
+                                    return EMPTY;
+                                }
+                                removed = item == null ? EMPTY : item;
+                                return removed;
+                            }
+
+                            @Override
+                            public boolean stole() {
+                                return removed != added;
+                            }
+                        };
+                    }
+                };
+            case "queue":
+                return new QueueTarget(new ConcurrentLinkedQueue<>());
+            case "transfer":
+                return new QueueTarget(new LinkedTransferQueue<>());
+            case "int":
+                final IntConcurrentBag ints = options.buildInt();
+                return new WorkloadTarget() {
+                    @Override
+                    BagMetrics metrics() {
+                        return ints.metrics();
+                    }
+
+                    @Override
+                    Access register(int domain) {
+                        ints.registerThread(domain);
+                        return new Access() {
+                            private long stolen;
+
+                            @Override
+                            public void add(int item) {
+                                ints.add(item);
+                            }
+
+                            @Override
+                            public int remove() {
+                                int item = ints.remove();
+                                return item == IntConcurrentBag.EMPTY ? EMPTY : item;
+                            }
+
+                            @Override
+                            public boolean stole() {
+                                long last = stolen;
+                                stolen = ints.stolenByCurrentThread();
+                                return stolen != last;
+                            }
+                        };
+                    }
+                };
+            case "handle":
+                final ConcurrentBag<Integer> bag = options.build();
+                return new WorkloadTarget() {
+                    @Override
+                    BagMetrics metrics() {
+                        return bag.metrics();
+                    }
+
+                    @Override
+                    Access register(int domain) {
+                        bag.registerThread(domain);
+                        final BagHandle<Integer> handle = bag.register();
+                        return new Access() {
+                            private long stolen;
+
+                            @Override
+                            public void add(int item) {
+                                handle.add(item);
+                            }
+
+                            @Override
+                            public int remove() {
+                                Integer item = handle.remove();
+                                return item == null ? EMPTY : item;
+                            }
+
+                            @Override
+                            public boolean stole() {
+                                long last = stolen;
+                                stolen = bag.stolenByCurrentThread();
+                                return stolen != last;
+                            }
+                        };
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+}